@@ -6,6 +6,7 @@ import java.awt.GridLayout;
 import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -14,9 +15,15 @@ import java.util.List;
 import javax.sound.sampled.LineUnavailableException;
 
 import StatePublisher.ThresholdController;
+import rascal.libemg.AutoCalibrator;
+import rascal.libemg.Calibration;
 import rascal.libemg.EMGSensor;
 import rascal.libemg.EMGSensor.OnReadListener;
+import rascal.libemg.Subscription;
+import rascal.libemg.io.Profile;
+import rascal.libemg.io.ProfileStore;
 import rascal.libemg.proc.MovingAverageFilter;
+import rascal.libemg.proc.PointFilter;
 import rascal.libemg.proc.Util;
 
 import javax.swing.*;
@@ -27,7 +34,7 @@ import javax.swing.event.ChangeListener;
 
 
 public class DeviceReaderUI extends JFrame implements OnReadListener {
-	MovingAverageFilter avgFilter;
+	PointFilter avgFilter;
 	EMGSensor sensor;
 	ThresholdController controller;
 	private static float LOW_THRESHOLD = 0.15f;
@@ -39,14 +46,19 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 	private static long TRANSITION_DELAY_MAX = 3000;
 	private static final int CURSOR_UPDATE_RATE = 16;
 	private static String title;
+	private static final String DEFAULT_PARTICIPANT = "default";
+	private static final String DEFAULT_PROFILE_DIR = "profiles";
 
-	private JSlider calibrationSlider;
+	private JButton calibrateButton;
 	private JSlider lowThresholdSlider;
 	private JSlider highThresholdSlider;
 	private JSlider rotationSpeedSlider;
 	private JSlider forwardSpeedMaxSlider;
 	private JSlider forwardSpeedSlowSlider;
 	static float calibration = 0.3f;
+	private AutoCalibrator calibrator;
+	private ProfileStore profileStore;
+	private Profile profile;
 	
 	private PlotPanel plotPanel;
 
@@ -60,12 +72,27 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 	JLabel forwardSpeedSlowLabel;
 	JLabel stateLabel;
 	JButton connectButton;
+	JButton saveButton;
 
 	public DeviceReaderUI() throws LineUnavailableException {
+		this(System.getProperty("participant", DEFAULT_PARTICIPANT));
+	}
+
+	/**
+	 * Sets up the sensor and controller with the participant's saved
+	 * profile, if there is one. Profiles are kept in the directory given by
+	 * the profile.dir system property.
+	 * @param participantId : participant to load and save the profile of
+	 */
+	public DeviceReaderUI(String participantId)
+			throws LineUnavailableException {
 		System.out.println("Initializing");
 		avgFilter = new MovingAverageFilter(8);
 		sensor = new EMGSensor(16);
-		sensor.addOnReadListener(this);
+		calibrator = new AutoCalibrator(16);
+		loadProfile(participantId);
+		// only the latest block matters for control, so never queue up
+		sensor.addOnReadListener(this, Subscription.Policy.CONFLATE, 1);
 		controller = new ThresholdController(LOW_THRESHOLD, HIGH_THRESHOLD,
 				FORWARD_INCREMENT_MAX, ROTATION_INCREMENT_MAX,
 				FORWARD_SLOW_DEFAULT);
@@ -99,20 +126,25 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 
 		stateLabel = new JLabel("State", JLabel.CENTER);
 
-		calibrationSlider = new JSlider(JSlider.HORIZONTAL, 0, 100,
-				(int) (calibration * 100));
-		calibrationSlider.setMinorTickSpacing(5);
-		calibrationSlider.setMajorTickSpacing(25);
-		calibrationSlider.setPaintTicks(true);
-		calibrationSlider.setPaintLabels(true);
-		calibrationSlider.addChangeListener(new ChangeListener() {
-			public void stateChanged(ChangeEvent e) {
-				calibration = calibrationSlider.getValue() / 100f;
-				calibrationLabel.setText("Calibration: "
-						+ calibrationSlider.getValue());
-				stateLabel.setText("" + controller.getInputState());
-
-				System.out.println(calibration);
+		calibrateButton = new JButton("Calibrate");
+		calibrateButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				switch (calibrator.getState()) {
+				case BASELINE:
+				case WAITING:
+				case CONTRACTING:
+					// the button reads "Cancel" while a run is in progress
+					calibrator.cancel();
+					calibrateButton.setText("Calibrate");
+					calibrationLabel.setText("Calibration: "
+							+ (int) (calibration * 100));
+					break;
+				default:
+					calibrator.start();
+					calibrateButton.setText("Cancel");
+					calibrationLabel.setText("Calibrating: relax");
+					break;
+				}
 			}
 		});
 
@@ -210,6 +242,12 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 		// JSlider TransitionDelaySlider=new
 		// JSlider(0,100,(int)(calibration*100));
 		connectButton = new JButton("Connect");
+		saveButton = new JButton("Save Profile");
+		saveButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent e) {
+				saveProfile();
+			}
+		});
 
 		connectButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
@@ -235,7 +273,7 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 		JPanel forwardSpeedSlowPanel = new JPanel();
 		forwardSpeedSlowPanel.setLayout(new GridLayout(2, 1, 0, 0));
 		JPanel statePanel = new JPanel();
-		statePanel.setLayout(new GridLayout(1, 2, 0, 0));
+		statePanel.setLayout(new GridLayout(1, 3, 0, 0));
 
 		JPanel uiPanel = new JPanel();
 		
@@ -243,7 +281,7 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 
 		calibrationPanel.add(calibrationLabel);
 		// calibrationPanel.add(Box.createHorizontalStrut(50));
-		calibrationPanel.add(calibrationSlider);
+		calibrationPanel.add(calibrateButton);
 		calibrationPanel.setBackground(Color.orange);
 
 		lowThresholdPanel.add(lowThresholdLabel);
@@ -272,6 +310,7 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 
 		statePanel.add(stateLabel);
 		statePanel.add(connectButton);
+		statePanel.add(saveButton);
 
 		uiPanel.setLayout(new GridLayout(5, 1));
 		uiPanel.add(calibrationPanel);
@@ -301,23 +340,16 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 
 	@Override
 	public void onRead(float[] sensorData) {
-		// process raw input on the recording thread
-		
-		final float val = Util.rms(sensorData);
-
-		
-		Thread t = new Thread() {
-		    public void run() {
-		    	onInputUpdate(val);
-		    }
-		};
-		t.start();	
+		// called on this listener's own delivery thread, so slow UI and
+		// socket updates only ever delay this listener
+		onInputUpdate(Util.rms(sensorData));
 	}
 	
 	
 	public void onInputUpdate(float val)
 	{
 		stateLabel.setText("" + controller.getInputState());
+		updateCalibration(val);
 		val = avgFilter.update(val / calibration);
 		
 		if(plotPanel != null)
@@ -344,6 +376,147 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 		}
 	}
 
+	/**
+	 * Feeds the raw envelope to a calibration run in progress and adopts the
+	 * MVC estimate once the run is done. Called on the delivery thread, so
+	 * the UI is updated on the event dispatch thread.
+	 */
+	private void updateCalibration(float val) {
+		AutoCalibrator.State before = calibrator.getState();
+		final AutoCalibrator.State after = calibrator.update(val);
+		if (after == before) {
+			return;
+		}
+		
+		if (after == AutoCalibrator.State.DONE && calibrator.getMvc() > 0) {
+			calibration = calibrator.getMvc();
+		}
+		final int contraction = calibrator.getContractionCount() + 1;
+		final boolean timedOut = calibrator.isTimedOut();
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				showCalibration(after, contraction, timedOut);
+			}
+		});
+	}
+	
+	/**
+	 * Shows a new calibration state, saving the profile once a run is done.
+	 * Must be called on the event dispatch thread.
+	 */
+	private void showCalibration(AutoCalibrator.State state, int contraction,
+			boolean timedOut) {
+		switch (state) {
+		case WAITING:
+			calibrationLabel.setText("Calibrating: contract (" + contraction
+					+ "/" + Calibration.NUM_CONTRACTIONS + ")");
+			break;
+		case CONTRACTING:
+			calibrationLabel.setText("Calibrating: hold, then relax");
+			break;
+		case DONE:
+			calibrationLabel.setText("Calibration: "
+					+ (int) (calibration * 100));
+			calibrateButton.setText("Calibrate");
+			System.out.println(calibration);
+			saveProfile();
+			break;
+		case IDLE:
+			// cancelled from the button, or no contraction in time
+			if (timedOut) {
+				calibrationLabel.setText("Calibration timed out");
+				calibrateButton.setText("Calibrate");
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Loads the participant's profile and applies its calibration, settings
+	 * and mains notch, keeping the defaults if there is no saved profile.
+	 * If the profile cannot be loaded the operator is told; a corrupt one
+	 * has been moved aside by the store, but one that could not be read at
+	 * all is still in place, so saving is disabled rather than replace it.
+	 */
+	private void loadProfile(String participantId) {
+		try {
+			profileStore = new ProfileStore(new File(System.getProperty(
+					"profile.dir", DEFAULT_PROFILE_DIR)));
+			profile = profileStore.load(participantId);
+		} catch (IOException e) {
+			e.printStackTrace();
+			String message = "Could not load the profile of " + participantId
+					+ ":\n" + e.getMessage();
+			if (profileStore != null
+					&& profileStore.getFile(participantId).exists()) {
+				profileStore = null;
+				message += "\nThe profile will not be saved this session.";
+			} else {
+				message += "\nStarting from the default settings.";
+			}
+			showWarning(message);
+		}
+		
+		if (profile == null) {
+			profile = new Profile(participantId);
+			return;
+		}
+		
+		System.out.println("Loaded profile for " + participantId);
+		calibration = profile.getCalibration();
+		LOW_THRESHOLD = profile.getLowThreshold();
+		HIGH_THRESHOLD = profile.getHighThreshold();
+		FORWARD_INCREMENT_MAX = profile.getForwardIncrement();
+		FORWARD_SLOW_DEFAULT = profile.getForwardSlow();
+		ROTATION_INCREMENT_MAX = profile.getRotationIncrement();
+		if (profile.getMainsHz() > 0) {
+			sensor.enableMainsNotch(profile.getMainsHz(),
+					profile.getMainsHarmonics());
+		}
+	}
+	
+	private static void showWarning(final String message) {
+		SwingUtilities.invokeLater(new Runnable() {
+			public void run() {
+				JOptionPane.showMessageDialog(null, message, "Profile",
+						JOptionPane.WARNING_MESSAGE);
+			}
+		});
+	}
+	
+	/**
+	 * Saves the current calibration and slider settings to the participant's
+	 * profile. Must be called on the event dispatch thread, which owns the
+	 * sliders; the profile file is small, so writing it there is quick.
+	 */
+	private synchronized void saveProfile() {
+		if (profileStore == null) {
+			return;
+		}
+		
+		profile.setCalibration(calibration);
+		if (calibrator.getState() == AutoCalibrator.State.DONE) {
+			Calibration values = new Calibration();
+			calibrator.addTo(values);
+			profile.setCalibrationValues(values);
+		}
+		profile.setLowThreshold(lowThresholdSlider.getValue() / 100f);
+		profile.setHighThreshold(highThresholdSlider.getValue() / 100f);
+		profile.setForwardIncrement(forwardSpeedMaxSlider.getValue() / 100f);
+		profile.setForwardSlow(forwardSpeedSlowSlider.getValue() / 100f);
+		profile.setRotationIncrement(rotationSpeedSlider.getValue() / 100f);
+		
+		try {
+			profileStore.save(profile);
+			System.out.println("Saved profile for "
+					+ profile.getParticipantId());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	public void checkConnection() throws UnknownHostException, IOException,
 			LineUnavailableException {
 		if (controller.initSocketConnections()) {
@@ -356,7 +529,9 @@ public class DeviceReaderUI extends JFrame implements OnReadListener {
 
 	public static void main(String args[]) throws LineUnavailableException,
 			UnknownHostException, IOException {
-		DeviceReaderUI ui = new DeviceReaderUI();
+		String participant = args.length > 0 ? args[0]
+				: System.getProperty("participant", DEFAULT_PARTICIPANT);
+		DeviceReaderUI ui = new DeviceReaderUI(participant);
 		ui.startPublisher();
 	}
 
@@ -14,6 +14,7 @@ import StatePublisher.ThresholdController;
 import rascal.libemg.EMGSensor;
 import rascal.libemg.EMGSensor.OnReadListener;
 import rascal.libemg.proc.MovingAverageFilter;
+import rascal.libemg.proc.PointFilter;
 import rascal.libemg.proc.Util;
 
 import javax.swing.*;
@@ -21,7 +22,7 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 public class RosPublisher extends JFrame implements OnReadListener{
-	MovingAverageFilter avgFilter;
+	PointFilter avgFilter;
 	EMGSensor sensor;
 	ThresholdController controller;
 	private static  float LOW_THRESHOLD = 0.15f;
@@ -0,0 +1,324 @@
+package rascal.libemg;
+
+import java.util.Arrays;
+
+import rascal.libemg.proc.P2Quantile;
+
+/**
+ * Runs a calibration automatically from a live envelope (e.g. the RMS of
+ * each block read), instead of relying on the caller to cut out contraction
+ * windows. A run goes through these states:
+ * <ul>
+ * <li>BASELINE: the user rests while the median resting level is estimated.
+ * <li>WAITING: waiting for a contraction to start. An onset is detected once
+ * the envelope stays above onsetRatio times the baseline for a short hold
+ * time, and an offset once it stays below the lower offsetRatio times the
+ * baseline, so the detector does not chatter around a single threshold.
+ * If no contraction starts within the wait timeout, the run is abandoned
+ * and the calibrator goes back to IDLE with isTimedOut() set.
+ * <li>CONTRACTING: the level of the contraction is estimated as a high
+ * quantile of its envelope with a P^2 estimator, so a single artifact spike
+ * does not dominate it the way a raw maximum would. Contractions shorter
+ * than the minimum duration are ignored.
+ * <li>DONE: after Calibration.NUM_CONTRACTIONS contractions, contractions
+ * further than OUTLIER_MADS median absolute deviations from the median are
+ * rejected and the rest are averaged into the MVC (maximum voluntary
+ * contraction) estimate. The MAD is taken as at least MIN_MAD_FRACTION of
+ * the median so that normal variation between contractions is never
+ * rejected. The MAD of a handful of values is too unstable to reject by, so
+ * runs of fewer than MIN_MAD_CONTRACTIONS (such as the default three)
+ * instead reject contractions more than OUTLIER_RATIO times above or below
+ * the median, which the median contraction itself never is. Runs of one or
+ * two contractions keep them all.
+ * </ul>
+ * Methods are synchronized so a UI thread can start a run and poll its
+ * state while the sensor thread streams values in.
+ */
+public class AutoCalibrator {
+
+    public enum State {
+        IDLE, BASELINE, WAITING, CONTRACTING, DONE
+    }
+
+    public static final float DEFAULT_BASELINE_SECONDS = 2;
+    public static final float DEFAULT_HOLD_SECONDS = 0.15f;
+    public static final float DEFAULT_MIN_CONTRACTION_SECONDS = 0.5f;
+    public static final float DEFAULT_WAIT_TIMEOUT_SECONDS = 20;
+    public static final float DEFAULT_ONSET_RATIO = 3;
+    public static final float DEFAULT_OFFSET_RATIO = 2;
+    /** Quantile of each contraction's envelope taken as its level */
+    public static final double MVC_QUANTILE = 0.9;
+    /** Contractions further than this many scaled MADs are rejected */
+    public static final float OUTLIER_MADS = 3;
+    /** Fewest contractions in a run for outliers to be rejected by MAD */
+    public static final int MIN_MAD_CONTRACTIONS = 5;
+    /** Shorter runs reject contractions this many times off the median */
+    public static final float OUTLIER_RATIO = 1.5f;
+    /** Lowest scaled MAD, as a fraction of the median level */
+    public static final float MIN_MAD_FRACTION = 0.05f;
+    /** Lowest resting level assumed, so silence cannot trigger onsets */
+    private static final float MIN_BASELINE = 1e-4f;
+
+    private final int contractions;
+    private final int baselineSamples;
+    private final int holdSamples;
+    private final int minContractionSamples;
+    private final int waitTimeoutSamples;
+    private float onsetRatio = DEFAULT_ONSET_RATIO;
+    private float offsetRatio = DEFAULT_OFFSET_RATIO;
+
+    private State state = State.IDLE;
+    private final P2Quantile baselineEstimator = new P2Quantile(0.5);
+    private final P2Quantile contractionEstimator =
+            new P2Quantile(MVC_QUANTILE);
+    private float baseline;
+    private int samples;
+    private int held;
+    private boolean timedOut;
+    /** Values below the offset threshold not yet known to be the offset */
+    private final float[] pending;
+
+    private final float[] levels;
+    private final boolean[] accepted;
+    private int found;
+    private float mvc;
+
+    /**
+     * Creates a calibrator with the default timing for
+     * Calibration.NUM_CONTRACTIONS contractions.
+     * @param updateRate : rate at which envelope values are given, in Hz
+     */
+    public AutoCalibrator(float updateRate) {
+        this(updateRate, Calibration.NUM_CONTRACTIONS);
+    }
+
+    /**
+     * Creates a calibrator with the default timing.
+     * @param updateRate : rate at which envelope values are given, in Hz
+     * @param contractions : number of contractions per run
+     */
+    public AutoCalibrator(float updateRate, int contractions) {
+        if (contractions < 1) {
+            throw new IllegalArgumentException(
+                    "Need at least one contraction");
+        }
+        this.contractions = contractions;
+        baselineSamples = samples(DEFAULT_BASELINE_SECONDS, updateRate);
+        holdSamples = samples(DEFAULT_HOLD_SECONDS, updateRate);
+        minContractionSamples =
+                samples(DEFAULT_MIN_CONTRACTION_SECONDS, updateRate);
+        pending = new float[holdSamples];
+        waitTimeoutSamples = samples(DEFAULT_WAIT_TIMEOUT_SECONDS, updateRate);
+
+        levels = new float[contractions];
+        accepted = new boolean[contractions];
+    }
+
+    private static int samples(float seconds, float rate) {
+        return Math.max(1, Math.round(seconds * rate));
+    }
+
+    /**
+     * Sets the hysteresis thresholds relative to the resting level.
+     * @param onsetRatio : level over baseline that starts a contraction
+     * @param offsetRatio : level over baseline that ends one, at most
+     * onsetRatio
+     */
+    public synchronized void setThresholds(float onsetRatio,
+            float offsetRatio) {
+        if (!(offsetRatio >= 1 && offsetRatio <= onsetRatio)) {
+            throw new IllegalArgumentException(
+                    "Need 1 <= offsetRatio <= onsetRatio");
+        }
+        this.onsetRatio = onsetRatio;
+        this.offsetRatio = offsetRatio;
+    }
+
+    /**
+     * Starts a new calibration run, discarding any previous results.
+     */
+    public synchronized void start() {
+        state = State.BASELINE;
+        baselineEstimator.reset();
+        samples = 0;
+        held = 0;
+        timedOut = false;
+        found = 0;
+        mvc = 0;
+        Arrays.fill(accepted, false);
+    }
+
+    /**
+     * Abandons the run in progress.
+     */
+    public synchronized void cancel() {
+        state = State.IDLE;
+    }
+
+    /**
+     * Adds the next envelope value. Does nothing unless a run is in progress.
+     * @param value : envelope value
+     * @return The state after this value.
+     */
+    public synchronized State update(float value) {
+        switch (state) {
+        case BASELINE:
+            baselineEstimator.add(value);
+            if (++samples >= baselineSamples) {
+                baseline = Math.max(MIN_BASELINE,
+                        (float)baselineEstimator.getQuantile());
+                state = State.WAITING;
+                samples = 0;
+                held = 0;
+            }
+            break;
+        case WAITING:
+            // onset once above the high threshold for the hold time
+            held = value > onsetRatio * baseline ? held + 1 : 0;
+            if (++samples > waitTimeoutSamples && held == 0) {
+                // nobody is contracting, e.g. the electrodes came off
+                state = State.IDLE;
+                timedOut = true;
+            } else if (held >= holdSamples) {
+                state = State.CONTRACTING;
+                contractionEstimator.reset();
+                samples = 0;
+                held = 0;
+            }
+            break;
+        case CONTRACTING:
+            samples++;
+            if (value >= offsetRatio * baseline) {
+                // not the offset after all: the held values belong to the
+                // contraction
+                for (int i = 0; i < held; i++) {
+                    contractionEstimator.add(pending[i]);
+                }
+                held = 0;
+                contractionEstimator.add(value);
+                break;
+            }
+            // offset once below the low threshold for the hold time; the
+            // values meanwhile are held back from the level estimate
+            pending[held++] = value;
+            if (held >= holdSamples) {
+                if (samples - held >= minContractionSamples) {
+                    levels[found++] = (float)contractionEstimator.getQuantile();
+                }
+                state = found < contractions ? State.WAITING : State.DONE;
+                samples = 0;
+                held = 0;
+                if (state == State.DONE) {
+                    finish();
+                }
+            }
+            break;
+        default:
+            break;
+        }
+
+        return state;
+    }
+
+    /**
+     * Rejects outlier contractions by their distance from the median in
+     * units of the (normal-scaled) median absolute deviation, or in runs too
+     * short for a stable MAD by their ratio to the median, and averages the
+     * rest.
+     */
+    private void finish() {
+        float median = median(levels.clone(), found);
+        float[] deviations = new float[found];
+        for (int i = 0; i < found; i++) {
+            deviations[i] = Math.abs(levels[i] - median);
+        }
+        float mad = Math.max(1.4826f * median(deviations.clone(), found),
+                MIN_MAD_FRACTION * median);
+
+        double sum = 0;
+        int n = 0;
+        for (int i = 0; i < found; i++) {
+            if (found >= MIN_MAD_CONTRACTIONS) {
+                accepted[i] = deviations[i] <= OUTLIER_MADS * mad;
+            } else {
+                accepted[i] = found < 3
+                        || (levels[i] <= OUTLIER_RATIO * median
+                                && levels[i] * OUTLIER_RATIO >= median);
+            }
+            if (accepted[i]) {
+                sum += levels[i];
+                n++;
+            }
+        }
+        mvc = (float)(sum / n);
+    }
+
+    private static float median(float[] values, int length) {
+        Arrays.sort(values, 0, length);
+        return length % 2 == 1 ? values[length / 2]
+                : (values[length/2 - 1] + values[length/2]) / 2;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return Whether the last run was abandoned because no contraction
+     * started within the wait timeout.
+     */
+    public synchronized boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return The resting level, once the baseline has been estimated.
+     */
+    public synchronized float getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * @return The number of contractions detected so far in this run.
+     */
+    public synchronized int getContractionCount() {
+        return found;
+    }
+
+    /**
+     * @param i : contraction index
+     * @return The level of contraction i.
+     */
+    public synchronized float getContractionLevel(int i) {
+        return levels[i];
+    }
+
+    /**
+     * @param i : contraction index
+     * @return Whether contraction i was kept in the MVC estimate, once done.
+     */
+    public synchronized boolean isAccepted(int i) {
+        return accepted[i];
+    }
+
+    /**
+     * @return The MVC estimate once the run is done, otherwise 0.
+     */
+    public synchronized float getMvc() {
+        return mvc;
+    }
+
+    /**
+     * Adds the accepted contraction levels of a finished run to a
+     * Calibration, as values with the same level in both coordinates.
+     * @param calibration : calibration to add the values to
+     */
+    public synchronized void addTo(Calibration calibration) {
+        for (int i = 0; i < found; i++) {
+            if (accepted[i]) {
+                calibration.addCalibrationValue(
+                        new Position(levels[i], levels[i]));
+            }
+        }
+    }
+}
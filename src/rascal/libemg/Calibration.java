@@ -9,6 +9,14 @@ import java.util.List;
  * Calibration values can be added directly or by adding a set of band power
  * values over time which is processed through a peak detector to obtain the
  * calibration value.
+ * <p>
+ * Band power values can also be streamed in as they arrive, e.g. from a
+ * sensor callback: call startContraction(), then update() for every value,
+ * then endContraction(). Each update takes constant time and does not
+ * allocate, and the mean and variance of the calibration values are kept up
+ * to date incrementally (Welford's method), so nothing has to be buffered.
+ * The methods are synchronized so a UI thread can read the results while
+ * another thread streams values in.
  */
 public class Calibration implements Iterable<Position> {
     public static final int NUM_CONTRACTIONS = 3;
@@ -17,6 +25,16 @@ public class Calibration implements Iterable<Position> {
     private List<Position> calList = new ArrayList<Position>();
     private Position calAvg;
     
+    // running statistics of the calibration values
+    private int count = 0;
+    private double mean1 = 0, mean2 = 0;
+    private double m2q1 = 0, m2q2 = 0;
+    
+    // contraction in progress
+    private boolean contracting = false;
+    private int contractionSamples = 0;
+    private float peak1 = 0, peak2 = 0;
+    
     /**
      * Initializes the Calibration with zero values for the mean calibration.
      */
@@ -29,26 +47,108 @@ public class Calibration implements Iterable<Position> {
         return calList.iterator();
     }
     
+    /**
+     * Starts streaming a contraction, discarding any contraction in progress.
+     */
+    public synchronized void startContraction() {
+        contracting = true;
+        contractionSamples = 0;
+        peak1 = 0;
+        peak2 = 0;
+    }
+    
+    /**
+     * Adds one band power sample to the contraction in progress.
+     * @param q1 : power in the first band
+     * @param q2 : power in the second band
+     * @throws IllegalStateException if no contraction was started
+     */
+    public synchronized void update(float q1, float q2) {
+        if (!contracting) {
+            throw new IllegalStateException("No contraction in progress");
+        }
+        contractionSamples++;
+        if (q1 > peak1) {
+            peak1 = q1;
+        }
+        if (q2 > peak2) {
+            peak2 = q2;
+        }
+    }
+    
+    /**
+     * Adds one band power sample to the contraction in progress.
+     * @param power : power in each band
+     * @throws IllegalStateException if no contraction was started
+     */
+    public void update(Position power) {
+        update(power.getQ1(), power.getQ2());
+    }
+    
+    /**
+     * Ends the contraction in progress and adds its peak band power values as
+     * a calibration value.
+     * @return a Position corresponding to the calibration value of the
+     * contraction.
+     * @throws IllegalStateException if no contraction was started
+     */
+    public synchronized Position endContraction() {
+        if (!contracting) {
+            throw new IllegalStateException("No contraction in progress");
+        }
+        contracting = false;
+        
+        Position cal = new Position(peak1, peak2);
+        calList.add(cal);
+        accumulate(peak1, peak2);
+        
+        return cal;
+    }
+    
+    /**
+     * Abandons the contraction in progress without adding a value.
+     */
+    public synchronized void cancelContraction() {
+        contracting = false;
+    }
+    
     /**
      * Adds a set of samples (usually a set of band power values in time) for
      * calculating a single calibration value which corresponds to a single
      * contraction.
-     * @param samples 2xN array of floats where N is the number of samples for
-     * each band
+     * @param samples Nx2 array of floats where N is the number of samples and
+     * the second index is the band
      * @return a Position corresponding to the calibration value calculated
      * from the input samples.
      */
-    public Position addContraction(float[][] samples) {
-        Position cal = calculateCalibrationValue(samples);
-        calList.add(cal);
-        calAvg.setPosition(calculateMeanContraction(calList));
+    public synchronized Position addContraction(float[][] samples) {
+        startContraction();
+        for (int i = 0; i < samples.length; i++) {
+            update(samples[i][0], samples[i][1]);
+        }
         
-        return cal;
+        return endContraction();
     }
     
-    public void addCalibrationValue(Position cal) {
+    public synchronized void addCalibrationValue(Position cal) {
         calList.add(new Position(cal.getQ1(), cal.getQ2()));
-        calAvg.setPosition(calculateMeanContraction(calList));
+        accumulate(cal.getQ1(), cal.getQ2());
+    }
+    
+    /**
+     * Updates the running mean and variance with a new calibration value.
+     */
+    private void accumulate(float q1, float q2) {
+        count++;
+        double d1 = q1 - mean1;
+        double d2 = q2 - mean2;
+        mean1 += d1 / count;
+        mean2 += d2 / count;
+        m2q1 += d1 * (q1 - mean1);
+        m2q2 += d2 * (q2 - mean2);
+        
+        calAvg.setQ1((float)mean1);
+        calAvg.setQ2((float)mean2);
     }
     
     /**
@@ -56,64 +156,89 @@ public class Calibration implements Iterable<Position> {
      * added.
      * @return the average calibration value
      */
-    public Position getMeanCalibration() {
+    public synchronized Position getMeanCalibration() {
         return calAvg;
     }
     
     /**
-     * Removes all calibration values added and resets the mean to zero.
+     * @return the mean calibration value of the first band
      */
-    public void clear() {
-        calList.clear();
-        calAvg.setQ1(0);
-        calAvg.setQ2(0);
+    public synchronized float getMeanQ1() {
+        return (float)mean1;
     }
     
     /**
-     * Calculates a calibration value by picking the maximum value of the power
-     * in each band during a single contraction.
-     * @param samples : 2D array of power samples, where the first index is the
-     * band and the second index is the sample index during the contraction
-     * @return a Position with coordinates set to the max value of each band
+     * @return the mean calibration value of the second band
      */
-    private static Position calculateCalibrationValue(float[][] samples) {
-        Position mvc = new Position(0, 0);
-        float maxima[] = {0, 0};
-            
-        for (int i = 0; i < samples.length; i++) {
-            if (samples[i][0] > maxima[0]) {
-                maxima[0] = samples[i][0];
-            }
-            
-            if (samples[i][1] > maxima[1]) {
-                maxima[1] = samples[i][1];
-            }
-        }
-            
-        mvc.translate(maxima[0], maxima[1]);
-        
-        return mvc;
+    public synchronized float getMeanQ2() {
+        return (float)mean2;
     }
     
     /**
-     * Calculates the mean of each coordinate of a list of Positions.
-     * @param positionList : list of positions to average over
-     * @return the mean of each coordinate
+     * @return the sample variance of the calibration values of the first
+     * band, or 0 with fewer than two values
      */
-    private static Position calculateMeanContraction(List<Position> positionList) {
-        Position mean = new Position(0, 0);
-        int N = positionList.size();
-        
-        if (N < 1) {
-            // just return (0, 0) if the list is empty for whatever reason
-            return mean;
-        }
-        
-        for (Position p : positionList) {
-            mean.translate(p.getQ1(), p.getQ2());
-        }
-        mean.scale(N, N);
-        
-        return mean;
+    public synchronized float getVarianceQ1() {
+        return count < 2 ? 0 : (float)(m2q1 / (count - 1));
+    }
+    
+    /**
+     * @return the sample variance of the calibration values of the second
+     * band, or 0 with fewer than two values
+     */
+    public synchronized float getVarianceQ2() {
+        return count < 2 ? 0 : (float)(m2q2 / (count - 1));
+    }
+    
+    /**
+     * @return the number of calibration values added
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+    
+    /**
+     * @return whether a streamed contraction is in progress
+     */
+    public synchronized boolean isContracting() {
+        return contracting;
+    }
+    
+    /**
+     * @return the number of samples in the contraction in progress
+     */
+    public synchronized int getContractionSampleCount() {
+        return contractionSamples;
+    }
+    
+    /**
+     * @return the peak power in the first band so far in the contraction in
+     * progress
+     */
+    public synchronized float getPeakQ1() {
+        return peak1;
+    }
+    
+    /**
+     * @return the peak power in the second band so far in the contraction in
+     * progress
+     */
+    public synchronized float getPeakQ2() {
+        return peak2;
+    }
+    
+    /**
+     * Removes all calibration values added and resets the mean to zero.
+     */
+    public synchronized void clear() {
+        calList.clear();
+        count = 0;
+        mean1 = 0;
+        mean2 = 0;
+        m2q1 = 0;
+        m2q2 = 0;
+        contracting = false;
+        calAvg.setQ1(0);
+        calAvg.setQ2(0);
     }
 }
@@ -2,20 +2,34 @@ package rascal.libemg;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.nio.ShortBuffer;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.TargetDataLine;
 
+import rascal.libemg.SampleRing.WaitStrategy;
+import rascal.libemg.io.LineSampleSource;
+import rascal.libemg.io.SampleSource;
+import rascal.libemg.proc.MainsNotchFilter;
+import rascal.libemg.proc.PolyphaseDecimator;
+import rascal.libemg.proc.SlidingWindow;
 
 /**
  * Represents an EMG sensor for general purpose use in the BCI environment.
- * The EMGSensor continuously reads in data from the microphone hardware at
- * regular intervals, dumping the data to any OnReadListener(s) added to the
- * list.
+ * The EMGSensor continuously reads in data from the microphone hardware (or
+ * any other SampleSource) at regular intervals, dumping the data to any OnReadListener(s) added to the
+ * list. The capture thread only writes blocks into a SampleRing (and queues
+ * analysis windows as they complete, see setAnalysisWindow()); a separate
+ * processing thread drains the ring and copies each block into the bounded
+ * queue of every listener's Subscription, and each listener is called from
+ * its own thread. A slow listener therefore can not delay the next read from
+ * the microphone or any other listener.
  */
 public class EMGSensor extends Thread {
 
@@ -23,42 +37,88 @@ public class EMGSensor extends Thread {
     public static final int DEFAULT_UPDATE_RATE = 4;
     /** Downsampling factor to use on the 8kHz input data */
     private static final int DOWNSAMPLE_FACTOR = 2;
+    /** Number of blocks buffered between the capture and processing threads */
+    public static final int DEFAULT_RING_CAPACITY = 8;
+    /** Maximum time kill() waits for the capture thread to finish */
+    public static final long SHUTDOWN_TIMEOUT_MS = 1000;
+    /** Default number of blocks queued for each listener */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+    /** Default backlog, in blocks, beyond which SKIP_TO_LIVE catches up */
+    public static final int DEFAULT_MAX_BACKLOG_BLOCKS = 2;
     
     /*
      * Audio recording configuration.
      */
    private static final int SAMPLE_RATE    = 8000;
+   /** Default size of the capture line's buffer in bytes */
    private static final int BUFFER_SIZE = 100000;
     
     private int updateRate;
+    /** Frames (samples per channel) read per block */
     private int bufferLength;
-    AudioFormat format = new AudioFormat(8000.0f, 16, 1, true, true);
-    TargetDataLine microphone;
-    //AudioFormat format = new AudioFormat()
+    private int channels;
+    private int outputLength;
+    private SampleSource source;
     
     
     /*
-     * Recording state variables.
+     * Recording state variables. The capture thread waits on stateChanged
+     * while paused, and kill() waits on it for the capture thread to stop.
      */
-    /** Indicates when run() has finished its while loop */
-    private boolean doneRunning = false;
-    /** Indicates the thread should not do anything */
-    private boolean stopped = false;
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition stateChanged = stateLock.newCondition();
+    private volatile SensorState state = SensorState.RUNNING;
     
    // private AudioRecord recorder;
+    /** Samples of the current block, deinterleaved into channel-major order */
     private short[] sensorData;
-    private float[] outputData;
+    /** Scratch output used to keep reading while the ring is full */
+    private float[] overrunData;
     private byte[] byteSensorData;
-    private List<OnReadListener> readListeners = new ArrayList<OnReadListener>();
+    /** 16-bit view over byteSensorData, reused for every block */
+    private ShortBuffer pcmView;
+    /** One decimator per channel */
+    private PolyphaseDecimator[] decimators;
+    /** One mains notch stage per channel, or null when disabled */
+    private volatile MainsNotchFilter[] notches;
+    private SampleRing ring;
+    private Thread processingThread;
+    /** Subscriptions to every block read (OnRead and OnBlock listeners) */
+    private List<Subscription> blockSubscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+    /** Subscriptions to analysis windows (OnWindow listeners) */
+    private List<Subscription> windowSubscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+    private int subscriptionCount = 0;
+    /** Analysis window, or null to use each block as its own window */
+    private volatile SlidingWindow window;
+    private SampleBlock windowBlock;
+    private long windowSequence = 0;
+    /** Sequence number of the next block read, including dropped ones */
+    private long blockSequence = 0;
+    
+    /*
+     * Backlog monitoring, all written only by the capture thread.
+     */
+    private volatile CatchUpPolicy catchUpPolicy = CatchUpPolicy.SKIP_TO_LIVE;
+    private volatile int maxBacklogBlocks = DEFAULT_MAX_BACKLOG_BLOCKS;
+    /** Source frames read, skipped or lost so far */
+    private long framesConsumed;
+    private boolean inOverrun = false;
+    private volatile long overruns = 0;
+    private volatile long shortReads = 0;
+    private volatile long lostFrames = 0;
+    private volatile long skippedFrames = 0;
+    private volatile long backlogFrames = 0;
+    private volatile long maxBacklogFrames = 0;
 
     /**
      * Initializes the sensor by allocating buffer storage and setting up the
-     * AudioRecord for reading in microphone data. The update rate is set to
+     * capture line for reading in microphone data. The update rate is set to
      * the default of 4.
      */
     public EMGSensor() throws LineUnavailableException{
-        this.updateRate = DEFAULT_UPDATE_RATE;
-        init();
+        this(DEFAULT_UPDATE_RATE);
     }
     
     /**
@@ -67,19 +127,65 @@ public class EMGSensor extends Thread {
      * sensor data
      */
     public EMGSensor(int updateRate) throws LineUnavailableException {
+        this(updateRate, BUFFER_SIZE);
+    }
+    
+    /**
+     * Initializes the sensor and sets the updateRate and the size of the
+     * capture line's buffer.
+     * @param updateRate : the number of times per second to read in the 
+     * sensor data
+     * @param lineBufferSize : size of the capture line's buffer in bytes,
+     * i.e. how far reading can fall behind before data is lost
+     */
+    public EMGSensor(int updateRate, int lineBufferSize)
+            throws LineUnavailableException {
+        this(updateRate, new LineSampleSource(
+                new AudioFormat(SAMPLE_RATE, 16, 1, true, true),
+                lineBufferSize));
+    }
+    
+    /**
+     * Initializes the sensor to read from an arbitrary source of samples
+     * (e.g. a recording or a synthetic signal) instead of the microphone.
+     * @param updateRate : the number of times per second to read in the 
+     * sensor data
+     * @param source : where to read samples from, must deliver 16-bit signed
+     * PCM with any number of channels
+     */
+    public EMGSensor(int updateRate, SampleSource source)
+            throws LineUnavailableException {
         this.updateRate = updateRate;
+        this.source = source;
         init();
     }
     
     private void init() throws LineUnavailableException {
+        AudioFormat format = source.getFormat();
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED
+                || format.getSampleSizeInBits() != 16
+                || format.getChannels() < 1) {
+            throw new IllegalArgumentException(
+                    "Unsupported sample format: " + format);
+        }
 
-        bufferLength = SAMPLE_RATE / updateRate;
-        byteSensorData=new byte[bufferLength*2];
-        sensorData =  new short[bufferLength];
-        microphone = AudioSystem.getTargetDataLine(format);
-        microphone.open();
-        System.out.println("Microphone Init");
-       
+        bufferLength = (int)format.getSampleRate() / updateRate;
+        // whole output periods only, so every block decimates to the same size
+        bufferLength -= bufferLength % DOWNSAMPLE_FACTOR;
+        channels = format.getChannels();
+        outputLength = bufferLength / DOWNSAMPLE_FACTOR;
+        byteSensorData = new byte[bufferLength*channels*2];
+        sensorData = new short[bufferLength*channels];
+        overrunData = new float[outputLength*channels];
+        decimators = new PolyphaseDecimator[channels];
+        for (int c = 0; c < channels; c++) {
+            decimators[c] = new PolyphaseDecimator(DOWNSAMPLE_FACTOR);
+        }
+        ring = new SampleRing(DEFAULT_RING_CAPACITY, outputLength, channels,
+                WaitStrategy.PARK);
+        pcmView = ByteBuffer.wrap(byteSensorData).order(format.isBigEndian()
+                ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        source.open();
     }
     
     /**
@@ -90,43 +196,389 @@ public class EMGSensor extends Thread {
      */
     @Override
     public void run() {
-        doneRunning = false;
+        processingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processBlocks();
+            }
+        }, getName() + "-processing");
+        processingThread.start();
         
-        microphone.start();
+        framesConsumed = source.getLongFramePosition();
+        final boolean realTime = source.isRealTime();
+        source.start();
         
-        while (!isInterrupted()) {
-            while (stopped) {}
-            
-            // read data from microphone input buffer
+        final int frameSize = 2*channels;
+        while (awaitRunning()) {
             if (isInterrupted()) { break; }
-            microphone.read(byteSensorData, 0, bufferLength);
-           
-            for(int i=0;i<bufferLength-1;i+=2)
-            { ByteBuffer bb = ByteBuffer.allocate(2);
-            bb.order(ByteOrder.BIG_ENDIAN);
-            bb.put(byteSensorData[i]);
-            bb.put(byteSensorData[i+1]);
-            short shortVal = bb.getShort(0);
-            //System.out.println(shortVal);
-           sensorData[i/2]=shortVal;
-           }        
+            // the block starts at the first frame not yet consumed, whether
+            // the source's position counts frames captured or delivered
+            long framePosition = framesConsumed;
             
-
-            // downsample for 4 kHz sample rate and scale so data is in [-1, 1]
-            if(isInterrupted()) { break; }
-            outputData = downsample(sensorData, DOWNSAMPLE_FACTOR, 32767);
+            // low-pass and downsample (to 4 kHz for the microphone) and scale
+            // so data is in [-1, 1] straight into the ring, or drop the block
+            // if the ring is full. A source that is not real-time waits for
+            // us, so wait for the processing thread instead of dropping.
+            SampleBlock block;
+            if (realTime) {
+                block = ring.claim();
+            } else if ((block = ring.awaitClaim()) == null) {
+                break;
+            }
+            float[] out = block != null ? block.getData() : overrunData;
             
-            // give the new data to any listeners
-            if (isInterrupted()) { break; }
-            for (OnReadListener l: readListeners) {
-                l.onRead(outputData);
+            // read the block in one go, or with an analysis window, in parts
+            // ending where each window does, so windows go out as soon as
+            // their last sample is read rather than once per block
+            SlidingWindow w = windowSubscriptions.isEmpty() ? null : window;
+            int done = 0;
+            boolean end = false;
+            while (done < bufferLength) {
+                int len = bufferLength - done;
+                if (w != null) {
+                    len = Math.min(len,
+                            w.getSamplesUntilReady() * DOWNSAMPLE_FACTOR);
+                }
+                int n = readFrames(done, len);
+                if (n < 0) {
+                    end = true;
+                    break;
+                }
+                framesConsumed += n / frameSize;
+                if (n < len * frameSize) { break; }
+                
+                decode(done, len);
+                filter(done, len, out);
+                if (w != null) {
+                    processWindows(w, out, done / DOWNSAMPLE_FACTOR,
+                            len / DOWNSAMPLE_FACTOR, framePosition);
+                }
+                done += len;
+            }
+            if (end || isInterrupted()) { break; }
+            if (done < bufferLength) {
+                // the read was cut short, e.g. by stop()
+                if (state == SensorState.RUNNING) {
+                    shortReads++;
+                }
+                continue;
+            }
+            long captureNanos = System.nanoTime();
+            monitorBacklog();
+            
+            if (block != null) {
+                block.setTimestamp(blockSequence, framePosition, captureNanos);
+                if (w == null && !windowSubscriptions.isEmpty()) {
+                    // no analysis window: each block is its own window
+                    for (Subscription sub: windowSubscriptions) {
+                        sub.offer(block);
+                    }
+                }
+                ring.publish();
+            }
+            blockSequence++;
+        }
+        
+        ring.close();
+        // kill() interrupts this thread to end a blocking read; clear the
+        // flag so the joins below wait for the queued blocks to be delivered
+        boolean interrupted = Thread.interrupted();
+        try {
+            processingThread.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        if (processingThread.isAlive()) {
+            processingThread.interrupt();
+        }
+        closeSubscriptions(blockSubscriptions);
+        closeSubscriptions(windowSubscriptions);
+        setState(SensorState.STOPPED);
+        if (interrupted) {
+            interrupt();
+        }
+    }
+    
+    /**
+     * Checks how far the capture thread is behind the source after a read.
+     * Frames the source has produced that were neither read nor are still
+     * waiting in its buffer were lost to an overrun, as were frames while the
+     * buffer is full. If the backlog exceeds maxBacklogBlocks and the policy
+     * is SKIP_TO_LIVE, the backlog is discarded so the next read is live.
+     */
+    private void monitorBacklog() {
+        int frameSize = 2*channels;
+        int available = source.available();
+        long backlog = available / frameSize;
+        
+        backlogFrames = backlog;
+        if (backlog > maxBacklogFrames) {
+            maxBacklogFrames = backlog;
+        }
+        
+        int bufferSize = source.getBufferSize();
+        boolean full = bufferSize != AudioSystem.NOT_SPECIFIED
+                && available >= bufferSize - frameSize;
+        long gap = source.getLongFramePosition() - framesConsumed - backlog;
+        if (gap > 0) {
+            lostFrames += gap;
+            framesConsumed += gap;
+        }
+        if ((full || gap > 0) && !inOverrun) {
+            overruns++;
+        }
+        inOverrun = full || gap > 0;
+        
+        if (catchUpPolicy == CatchUpPolicy.SKIP_TO_LIVE
+                && backlog > (long)maxBacklogBlocks * bufferLength) {
+            source.flush();
+            skippedFrames += backlog;
+            framesConsumed = Math.max(framesConsumed + backlog,
+                    source.getLongFramePosition()
+                            - source.available() / frameSize);
+        }
+    }
+    
+    /**
+     * Decodes frames of byteSensorData into sensorData. Mono data is copied
+     * in bulk; interleaved multi-channel frames are split into channel-major
+     * order in a single pass.
+     * @param from : index of the first frame in the block
+     * @param len : number of frames
+     */
+    private void decode(int from, int len) {
+        pcmView.clear();
+        
+        if (channels == 1) {
+            pcmView.position(from);
+            pcmView.get(sensorData, from, len);
+            return;
+        }
+        
+        int i = from * channels;
+        for (int f = from; f < from + len; f++) {
+            for (int c = 0; c < channels; c++) {
+                sensorData[c*bufferLength + f] = pcmView.get(i++);
+            }
+        }
+    }
+    
+    /**
+     * Decimates, scales and notch filters decoded frames of the block into
+     * the output block.
+     * @param from : index of the first frame in the block, a multiple of
+     * DOWNSAMPLE_FACTOR
+     * @param len : number of frames, a multiple of DOWNSAMPLE_FACTOR
+     * @param out : output block data, channel-major
+     */
+    private void filter(int from, int len, float[] out) {
+        int outFrom = from / DOWNSAMPLE_FACTOR;
+        int outLen = len / DOWNSAMPLE_FACTOR;
+        MainsNotchFilter[] notches = this.notches;
+        for (int c = 0; c < channels; c++) {
+            decimators[c].process(sensorData, c*bufferLength + from, len,
+                    32767, out, c*outputLength + outFrom);
+            if (notches != null) {
+                notches[c].filter(out, c*outputLength + outFrom, outLen);
             }
         }
-        doneRunning = true;
     }
     
     /**
-     * Downsamples the data in an array by a specified integer.
+     * Blocks the capture thread while the sensor is paused, without using any
+     * CPU, until it is restarted or killed.
+     * @return true if the sensor is running, false if it should stop
+     */
+    private boolean awaitRunning() {
+        stateLock.lock();
+        try {
+            while (state == SensorState.PAUSED && !isInterrupted()) {
+                stateChanged.await();
+            }
+            return state == SensorState.RUNNING && !isInterrupted();
+        } catch (InterruptedException e) {
+            // kill() interrupts the thread to break out of the wait
+            return false;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+    
+    private void setState(SensorState newState) {
+        stateLock.lock();
+        try {
+            state = newState;
+            stateChanged.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+    
+    /**
+     * Drains the ring on the processing thread, queueing each block for the
+     * listeners, until the ring is closed.
+     */
+    private void processBlocks() {
+        SampleBlock block;
+        
+        while ((block = ring.take()) != null) {
+            for (Subscription sub: blockSubscriptions) {
+                sub.offer(block);
+            }
+            ring.release();
+        }
+    }
+    
+    /**
+     * Closes subscriptions and gives each a bounded time to deliver what it
+     * has already queued.
+     */
+    private static void closeSubscriptions(List<Subscription> subs) {
+        for (Subscription sub: subs) {
+            sub.close();
+        }
+        try {
+            for (Subscription sub: subs) {
+                sub.join(SHUTDOWN_TIMEOUT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Slides the analysis window over newly read samples of a block, giving
+     * every completed window to the window listeners. Called on the capture
+     * thread, as the samples are read.
+     * @param w : the analysis window
+     * @param data : output block data, channel-major
+     * @param off : index in the block of the first new sample
+     * @param len : number of new samples
+     * @param framePosition : source frame position of the block
+     */
+    private void processWindows(SlidingWindow w, float[] data, int off,
+            int len, long framePosition) {
+        if (windowBlock == null || windowBlock.getData() != w.getBuffer()) {
+            windowBlock = new SampleBlock(w.getBuffer(), w.getChannelCount(),
+                    w.getChannelStride());
+        }
+        
+        int i = off;
+        while (i < off + len) {
+            i += w.push(data, i, off + len - i, outputLength);
+            if (w.isReady()) {
+                // the window ends with sample i of the block
+                windowBlock.setView(w.getOffset(), w.getLength());
+                windowBlock.setTimestamp(windowSequence++, framePosition
+                        + (long)(i - w.getLength()) * DOWNSAMPLE_FACTOR,
+                        System.nanoTime());
+                for (Subscription sub: windowSubscriptions) {
+                    sub.offer(windowBlock);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Configures the analysis window given to OnWindowListeners separately
+     * from the read size. For example, at a 4 kHz output rate, a 500 sample
+     * window with a 40 sample hop gives a 125 ms window every 10 ms. While
+     * window listeners are registered, each block is read in parts ending
+     * where a window does, and the windows are given to the listeners from
+     * the capture thread as soon as their last sample is read, each stamped
+     * with the time of that read. So a window listener with the BLOCK policy
+     * that falls behind holds up reading.
+     * @param windowLength : samples in each window at the output rate
+     * @param hopLength : new samples between consecutive windows
+     */
+    public void setAnalysisWindow(int windowLength, int hopLength) {
+        window = new SlidingWindow(windowLength, hopLength, channels);
+    }
+    
+    /**
+     * Removes the analysis window configuration so each block read is given
+     * to the OnWindowListeners as-is.
+     */
+    public void clearAnalysisWindow() {
+        window = null;
+    }
+    
+    /**
+     * Removes mains hum from every channel after downsampling, with an
+     * adaptive notch at the mains frequency and each of the given number of
+     * harmonics. The notches track drift of a few Hz around the nominal
+     * frequency. Replaces any previous notch configuration.
+     * @param mainsHz : nominal mains frequency, e.g. 50 or 60
+     * @param harmonics : number of harmonics to remove besides the
+     * fundamental
+     */
+    public void enableMainsNotch(float mainsHz, int harmonics) {
+        MainsNotchFilter[] filters = new MainsNotchFilter[channels];
+        for (int c = 0; c < channels; c++) {
+            filters[c] = new MainsNotchFilter(mainsHz, harmonics,
+                    getOutputSampleRate());
+        }
+        notches = filters;
+    }
+    
+    /**
+     * Stops removing mains hum.
+     */
+    public void disableMainsNotch() {
+        notches = null;
+    }
+    
+    /**
+     * Fills frames of byteSensorData from the source. SampleSource.read()
+     * may return early (e.g. when the line is stopped), so keep reading until
+     * all of them are read.
+     * @param from : index of the first frame in the block
+     * @param len : number of frames
+     * @return the number of bytes read, which is less than requested if the
+     * read was cut short, or -1 if the source has run out of data
+     */
+    private int readFrames(int from, int len) {
+        int frameSize = 2*channels;
+        int start = from * frameSize;
+        int end = start + len * frameSize;
+        int offset = start;
+        
+        while (offset < end) {
+            int n = source.read(byteSensorData, offset, end - offset);
+            if (n < 0) {
+                return -1;
+            }
+            if (n == 0 || isInterrupted()) {
+                break;
+            }
+            offset += n;
+        }
+        
+        return offset - start;
+    }
+    
+    /**
+     * Gets the rate of the samples given to listeners, i.e. the source's
+     * sample rate after downsampling.
+     * @return the output sample rate in Hz
+     */
+    public float getOutputSampleRate() {
+        return source.getFormat().getSampleRate() / DOWNSAMPLE_FACTOR;
+    }
+    
+    /**
+     * Gets the source's sample rate, i.e. the rate of the frame positions
+     * given in SampleBlocks.
+     * @return the input sample rate in Hz
+     */
+    public float getInputSampleRate() {
+        return source.getFormat().getSampleRate();
+    }
+    
+    /**
+     * Downsamples the data in an array by a specified integer. No low-pass
+     * filtering is done, so content above the new Nyquist frequency aliases;
+     * see PolyphaseDecimator for an anti-aliased alternative.
      * @param indata : data to downsample
      * @param M : downsampling factor
      * @param scale : scaling factor for normalization
@@ -134,19 +586,82 @@ public class EMGSensor extends Thread {
      */
     public static float[] downsample(short[] indata, int M, float scale) {
         float[] outdata = new float[indata.length / M];
+        downsample(indata, M, scale, outdata);
+        return outdata;
+    }
+    
+    /**
+     * Downsamples the data in an array by a specified integer, writing the
+     * result into a preallocated array so nothing is allocated per block.
+     * @param indata : data to downsample
+     * @param M : downsampling factor
+     * @param scale : scaling factor for normalization
+     * @param outdata : destination, must hold at least indata.length / M
+     * values
+     */
+    public static void downsample(short[] indata, int M, float scale,
+            float[] outdata) {
         for (int i = 0; i < indata.length/M; i++) {
             outdata[i] = indata[M*i] / scale;
         }
-        return outdata;
+    }
+    
+    /**
+     * Gets the number of blocks captured but not yet processed.
+     * @return the ring occupancy
+     */
+    public int getRingOccupancy() {
+        return ring.size();
+    }
+    
+    /**
+     * Gets the number of blocks dropped because the processing thread fell
+     * more than a full ring behind the capture thread. Always 0 for a source
+     * that is not real-time, which the capture thread waits for instead.
+     * @return the ring overrun count
+     */
+    public long getRingOverrunCount() {
+        return ring.getOverrunCount();
+    }
+    
+    /**
+     * Sets how the processing thread waits for new blocks. PARK (the default)
+     * uses no CPU while idle; SPIN and YIELD trade CPU for wake-up latency.
+     * @param strategy : the wait strategy to use
+     */
+    public void setWaitStrategy(WaitStrategy strategy) {
+        ring.setWaitStrategy(strategy);
     }
     
     /**
      * Adds a listener for incoming EMG data. The listener's onRead will be
-     * called when new data from the sensor is available.
+     * called when new data from the sensor is available. Nothing is dropped:
+     * if the listener falls DEFAULT_QUEUE_CAPACITY blocks behind, the
+     * processing thread waits for it.
+     * @param listener : the listener to add
+     * @return the listener's subscription, for monitoring its lag and drops
+     */
+    public Subscription addOnReadListener(OnReadListener listener) {
+        return addOnReadListener(listener, Subscription.Policy.BLOCK,
+                DEFAULT_QUEUE_CAPACITY);
+    }
+    
+    /**
+     * Adds a listener for incoming EMG data with its own queue policy.
      * @param listener : the listener to add
+     * @param policy : what to do when the listener's queue is full
+     * @param capacity : number of blocks queued for the listener
+     * @return the listener's subscription, for monitoring its lag and drops
      */
-    public void addOnReadListener(OnReadListener listener) {
-        readListeners.add(listener);
+    public Subscription addOnReadListener(final OnReadListener listener,
+            Subscription.Policy policy, int capacity) {
+        return subscribe(blockSubscriptions,
+                new Subscription(listener, policy, capacity) {
+            @Override
+            protected void deliver(SampleBlock block) {
+                listener.onRead(block.getData());
+            }
+        });
     }
     
     /**
@@ -155,16 +670,211 @@ public class EMGSensor extends Thread {
      * @param listener : the listener to remove
      */
     public void removeOnReadListener(OnReadListener listener) {
-        readListeners.remove(listener);
+        unsubscribe(blockSubscriptions, listener);
+    }
+    
+    /**
+     * Adds a listener for incoming EMG data from all channels. The listener's
+     * onBlock will be called with each block read, before any windowing.
+     * Nothing is dropped, as with addOnReadListener(OnReadListener).
+     * @param listener : the listener to add
+     * @return the listener's subscription, for monitoring its lag and drops
+     */
+    public Subscription addOnBlockListener(OnBlockListener listener) {
+        return addOnBlockListener(listener, Subscription.Policy.BLOCK,
+                DEFAULT_QUEUE_CAPACITY);
+    }
+    
+    /**
+     * Adds a listener for incoming EMG data from all channels with its own
+     * queue policy.
+     * @param listener : the listener to add
+     * @param policy : what to do when the listener's queue is full
+     * @param capacity : number of blocks queued for the listener
+     * @return the listener's subscription, for monitoring its lag and drops
+     */
+    public Subscription addOnBlockListener(final OnBlockListener listener,
+            Subscription.Policy policy, int capacity) {
+        return subscribe(blockSubscriptions,
+                new Subscription(listener, policy, capacity) {
+            @Override
+            protected void deliver(SampleBlock block) {
+                listener.onBlock(block);
+            }
+        });
     }
     
     /**
-     * Notifies the reading thread to stop and waits for it to do so. The
-     * Sensor can be used again by calling restart() method.
+     * Removes a block listener.
+     * @param listener : the listener to remove
+     */
+    public void removeOnBlockListener(OnBlockListener listener) {
+        unsubscribe(blockSubscriptions, listener);
+    }
+    
+    /**
+     * Gets the number of samples per channel in each block given to OnRead
+     * and OnBlock listeners.
+     * @return the block length
+     */
+    public int getBlockLength() {
+        return outputLength;
+    }
+    
+    /**
+     * Gets the number of channels delivered by the sensor's source.
+     * @return the channel count
+     */
+    public int getChannelCount() {
+        return channels;
+    }
+    
+    /**
+     * Adds a listener for analysis windows. Without an analysis window
+     * configured, each block read is passed on as its own window. The
+     * oldest windows are dropped if the listener falls behind; the queue
+     * holds at least the windows of one read, so configure the analysis
+     * window first.
+     * @param listener : the listener to add
+     * @return the listener's subscription, for monitoring its lag and drops
+     */
+    public Subscription addOnWindowListener(OnWindowListener listener) {
+        SlidingWindow w = window;
+        int perRead = w == null ? 1
+                : (outputLength + w.getHopLength() - 1) / w.getHopLength();
+        return addOnWindowListener(listener, Subscription.Policy.DROP_OLDEST,
+                Math.max(DEFAULT_QUEUE_CAPACITY, perRead));
+    }
+    
+    /**
+     * Adds a listener for analysis windows with its own queue policy.
+     * @param listener : the listener to add
+     * @param policy : what to do when the listener's queue is full
+     * @param capacity : number of windows queued for the listener
+     * @return the listener's subscription, for monitoring its lag and drops
+     */
+    public Subscription addOnWindowListener(final OnWindowListener listener,
+            Subscription.Policy policy, int capacity) {
+        return subscribe(windowSubscriptions,
+                new Subscription(listener, policy, capacity) {
+            @Override
+            protected void deliver(SampleBlock block) {
+                listener.onWindow(block);
+            }
+        });
+    }
+    
+    /**
+     * Removes a window listener.
+     * @param listener : the listener to remove
+     */
+    public void removeOnWindowListener(OnWindowListener listener) {
+        unsubscribe(windowSubscriptions, listener);
+    }
+    
+    private synchronized Subscription subscribe(List<Subscription> subs,
+            Subscription sub) {
+        sub.start(getName() + "-listener-" + subscriptionCount++);
+        subs.add(sub);
+        return sub;
+    }
+    
+    private void unsubscribe(List<Subscription> subs, Object listener) {
+        for (Subscription sub: subs) {
+            if (sub.getListener() == listener) {
+                subs.remove(sub);
+                sub.close();
+            }
+        }
+    }
+    
+    /**
+     * Sets what to do when reading falls behind the source.
+     * @param policy : the catch-up policy, SKIP_TO_LIVE by default
+     * @param maxBacklogBlocks : backlog, in blocks, tolerated before
+     * SKIP_TO_LIVE discards it
+     */
+    public void setCatchUpPolicy(CatchUpPolicy policy, int maxBacklogBlocks) {
+        this.catchUpPolicy = policy;
+        this.maxBacklogBlocks = maxBacklogBlocks;
+    }
+    
+    /**
+     * Gets the number of times the source's buffer overran, i.e. captured
+     * data was lost because reading fell too far behind.
+     * @return the overrun count
+     */
+    public long getOverrunCount() {
+        return overruns;
+    }
+    
+    /**
+     * Gets the number of reads that returned less than a block while the
+     * sensor was running (e.g. the source stalled).
+     * @return the short read count
+     */
+    public long getShortReadCount() {
+        return shortReads;
+    }
+    
+    /**
+     * Gets the number of source frames lost to overruns, as detected from
+     * gaps in the source's frame position.
+     * @return the lost frame count
+     */
+    public long getLostFrameCount() {
+        return lostFrames;
+    }
+    
+    /**
+     * Gets the number of source frames deliberately discarded by the
+     * SKIP_TO_LIVE catch-up policy.
+     * @return the skipped frame count
+     */
+    public long getSkippedFrameCount() {
+        return skippedFrames;
+    }
+    
+    /**
+     * Gets the number of source frames waiting to be read after the last
+     * read.
+     * @return the current backlog in frames
+     */
+    public long getBacklogFrames() {
+        return backlogFrames;
+    }
+    
+    /**
+     * Gets the largest backlog seen after any read.
+     * @return the maximum backlog in frames
+     */
+    public long getMaxBacklogFrames() {
+        return maxBacklogFrames;
+    }
+    
+    /**
+     * Gets the current lifecycle state of the sensor.
+     * @return the sensor state
+     */
+    public SensorState getSensorState() {
+        return state;
+    }
+    
+    /**
+     * Notifies the reading thread to stop reading. The thread then waits
+     * without using any CPU until restart() or kill() is called.
      */
     public void pause() {
-        stopped = true;
-        microphone.stop();
+        stateLock.lock();
+        try {
+            if (state == SensorState.RUNNING) {
+                state = SensorState.PAUSED;
+                source.stop();
+                stateChanged.signalAll();
+            }
+        } finally {
+            stateLock.unlock();
+        }
     }
     
     /**
@@ -172,23 +882,74 @@ public class EMGSensor extends Thread {
      * listeners.
      */
     public void restart() {
-        stopped = false;
-       microphone.start();
+        stateLock.lock();
+        try {
+            if (state == SensorState.PAUSED) {
+                state = SensorState.RUNNING;
+                source.start();
+                stateChanged.signalAll();
+            }
+        } finally {
+            stateLock.unlock();
+        }
     }
     
     /**
      * Stops the sensor gracefully then releases its resources. Must create a
      * new EMGSensor object after calling this method as this one can no 
-     * longer be used.
+     * longer be used. Waits at most SHUTDOWN_TIMEOUT_MS for the reading
+     * thread to finish; the source is closed either way, which unblocks a
+     * read that is stuck in the driver.
      */
     public void kill() {
-        stopped = false;
-        interrupt();
-        while(!doneRunning) {}
-        {
-            microphone.stop();
+        stateLock.lock();
+        try {
+            if (getState() == Thread.State.NEW) {
+                // never started, so there is no thread to wait for
+                state = SensorState.STOPPED;
+            } else if (state != SensorState.STOPPED) {
+                state = SensorState.STOPPING;
+                stateChanged.signalAll();
+                interrupt();
+                
+                long remaining = TimeUnit.MILLISECONDS.toNanos(
+                        SHUTDOWN_TIMEOUT_MS);
+                while (state != SensorState.STOPPED && remaining > 0) {
+                    remaining = stateChanged.awaitNanos(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stateLock.unlock();
         }
-       microphone.close();
+        
+        source.stop();
+        source.close();
+    }
+    
+    /**
+     * What the sensor does when reading falls behind the source.
+     */
+    public enum CatchUpPolicy {
+        /** Discard the backlog and continue with live data */
+        SKIP_TO_LIVE,
+        /** Read through the backlog, staying behind until it is cleared */
+        PROCESS_BACKLOG
+    }
+    
+    /**
+     * Lifecycle states of the sensor.
+     */
+    public enum SensorState {
+        /** Reading samples and updating listeners */
+        RUNNING,
+        /** Waiting for restart(), not reading or using any CPU */
+        PAUSED,
+        /** kill() was called and the reading thread is finishing up */
+        STOPPING,
+        /** The reading thread has finished */
+        STOPPED
     }
     
     /**
@@ -199,11 +960,43 @@ public class EMGSensor extends Thread {
     public interface OnReadListener {
         
         /**
-         * Callback fired from EMGSensor when there is a set of samples
-         * to be processed.
+         * Callback fired from the listener's own delivery thread when there
+         * is a set of samples to be processed. The array is reused, so copy
+         * it if the samples are needed after the callback returns.
          * @param sensorData : the normalized (-1 to 1) samples read by the 
-         * EMGSensor
+         * EMGSensor; for multi-channel sources, all channels in channel-major
+         * order
          */
         public void onRead(float[] sensorData);
     }
+    
+    /**
+     * Multi-channel variant of OnReadListener, giving a channel-major view of
+     * each block read by the EMGSensor.
+     */
+    public interface OnBlockListener {
+        
+        /**
+         * Callback fired from the listener's own delivery thread when there
+         * is a block of samples to be processed.
+         * @param block : view onto the block's samples for every channel,
+         * only valid for the duration of the callback
+         */
+        public void onBlock(SampleBlock block);
+    }
+    
+    /**
+     * Interface for obtaining sliding analysis windows of normalized samples
+     * from the EMGSensor. See setAnalysisWindow().
+     */
+    public interface OnWindowListener {
+        
+        /**
+         * Callback fired from the listener's own delivery thread each time
+         * the analysis window advances by a hop.
+         * @param window : view onto the window's samples, only valid for the
+         * duration of the callback
+         */
+        public void onWindow(SampleBlock window);
+    }
 }
@@ -1,102 +1,210 @@
 package rascal.libemg;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.io.IOException;
+import java.util.Random;
+
+import rascal.libemg.io.TrialJournal;
 
 /**
- * A simple class for keeping track of trials throughout a session.
+ * A simple class for keeping track of trials throughout a session. With a
+ * TrialJournal attached, every trial start, restart and end, controller
+ * state transition and trajectory position is also recorded with its time,
+ * so the session can be analyzed after the process exits.
  */
 public class ExperimentSession {
     /** Maximum number of times a target can be seen in a row */
     private static final int MAX_REPEAT = 3;
-    /** Maximum number of times the randomization can run */
-    private static final int MAX_ITERS = 100;
     
     private int numTrials;
     private int numTargets;
     private int currentTrial = 1;
-    private List<Integer> targetSequence = new ArrayList<Integer>();
-    private int numIters = 0;
+    private int[] targetSequence;
+    private long seed;
     private int[][] successes;
     
+    private TrialJournal journal;
+    private boolean trialRunning = false;
+    private long trialStartNanos = 0;
+    private int restarts = 0;
+    
     /**
      * Initializes the session with the indices of the targets in randomized
-     * order that will be used throughout the session. Make sure numTrials is
-     * evenly divisible by numTargets.
+     * order that will be used throughout the session, using a random seed.
      * @param numTrials : the number of trials in the session
      * @param numTargets : the number of targets to generate indices for
      */
     public ExperimentSession(int numTrials, int numTargets) {
+        this(numTrials, numTargets, new Random().nextLong());
+    }
+    
+    /**
+     * Initializes the session with the indices of the targets in randomized
+     * order that will be used throughout the session. The same seed always
+     * gives the same sequence, so a session can be reproduced. If numTrials
+     * is not evenly divisible by numTargets, the remaining trials go to
+     * randomly chosen targets, at most one extra each.
+     * @param numTrials : the number of trials in the session
+     * @param numTargets : the number of targets to generate indices for
+     * @param seed : seed of the randomization
+     */
+    public ExperimentSession(int numTrials, int numTargets, long seed) {
+        if (numTrials < 1 || numTargets < 1) {
+            throw new IllegalArgumentException(
+                    "Need at least one trial and one target");
+        }
         this.numTrials = numTrials;
         this.numTargets = numTargets;
+        this.seed = seed;
         
         successes = new int[numTargets][2];
         
-        initTargetSequence();
+        targetSequence = generateSequence(numTrials, numTargets, MAX_REPEAT,
+                new Random(seed));
     }
     
     /**
-     * Generates a list of target indices and randomizes it for the session.
-     * Also checks to make sure there aren't too many of the same target in 
-     * consecutive trials. Filtering lists with too many of the same target 
-     * in a row means this method is applied recursively, so a maximum number
-     * of iterations is enforced.
+     * Generates a balanced random sequence of target indices in which no
+     * target appears more than maxRepeat times in a row. Rather than
+     * shuffling and retrying, the sequence is built one trial at a time:
+     * each trial's target is drawn with probability proportional to its
+     * remaining count, among the targets that leave the rest of the sequence
+     * completable. A completion exists as long as every target i with c_i
+     * trials left fits in the gaps between the S_i trials left for other
+     * targets, c_i <= maxRepeat * (S_i + 1), where the first gap is shortened
+     * by the current run if i was the last target placed. The right-hand side
+     * shrinks as c_i grows, so besides the target just placed only the
+     * target with the most trials left can violate it. Tracking the largest
+     * and second largest counts makes each candidate's check O(1) and each
+     * step O(numTargets), so the whole sequence takes O(numTrials *
+     * numTargets) time.
+     * @param numTrials : length of the sequence
+     * @param numTargets : number of distinct targets
+     * @param maxRepeat : maximum number of times a target can appear in a row
+     * @param random : source of randomness
+     * @return the sequence of target indices
+     * @throws IllegalArgumentException if no sequence satisfies the
+     * constraint (only possible with a single target)
      */
-    private void initTargetSequence() {
-        numIters++;
-        
-        // build list of target indices with an entry for each trial
+    static int[] generateSequence(int numTrials, int numTargets,
+            int maxRepeat, Random random) {
+        int[] counts = new int[numTargets];
         for (int t = 0; t < numTargets; t++) {
-            for (int i = 0; i < numTrials/numTargets; i++) {
-                targetSequence.add(t);
-            }
+            counts[t] = numTrials / numTargets;
+        }
+        // spread the remainder over distinct random targets
+        int[] order = new int[numTargets];
+        for (int t = 0; t < numTargets; t++) {
+            int j = random.nextInt(t + 1);
+            order[t] = order[j];
+            order[j] = t;
+        }
+        for (int i = 0; i < numTrials % numTargets; i++) {
+            counts[order[i]]++;
         }
         
-        // shuffle the list
-        Collections.shuffle(targetSequence);
+        if (!feasible(counts, numTrials, -1, 0, maxRepeat)) {
+            throw new IllegalArgumentException("No sequence of " + numTrials
+                    + " trials has at most " + maxRepeat + " repeats");
+        }
+        
+        int[] sequence = new int[numTrials];
+        int last = -1;
+        int run = 0;
+        for (int n = 0; n < numTrials; n++) {
+            int remaining = numTrials - n;
+            
+            // the target with the most trials left, and the most left for
+            // any other target
+            int top = 0;
+            int second = 0;
+            for (int t = 1; t < numTargets; t++) {
+                if (counts[t] > counts[top]) {
+                    second = counts[top];
+                    top = t;
+                } else if (counts[t] > second) {
+                    second = counts[t];
+                }
+            }
+            
+            // total weight of the targets that can be placed next
+            int weight = 0;
+            for (int t = 0; t < numTargets; t++) {
+                if (allowed(counts, remaining, last, run, maxRepeat, t,
+                        t == top ? second : counts[top])) {
+                    weight += counts[t];
+                }
+            }
+            
+            int pick = random.nextInt(weight);
+            int target = 0;
+            for (int t = 0; t < numTargets; t++) {
+                if (allowed(counts, remaining, last, run, maxRepeat, t,
+                        t == top ? second : counts[top])) {
+                    if (pick < counts[t]) {
+                        target = t;
+                        break;
+                    }
+                    pick -= counts[t];
+                }
+            }
+            
+            counts[target]--;
+            run = target == last ? run + 1 : 1;
+            last = target;
+            sequence[n] = target;
+        }
         
-        // check if there are too many repeated targets and if so, try again
-        if (checkRepeats(targetSequence, MAX_REPEAT) && numIters < MAX_ITERS) {
-            targetSequence.clear();
-            initTargetSequence();
+        return sequence;
+    }
+    
+    /**
+     * Checks whether target t can be placed next and leave a completable
+     * sequence, given the largest count among the other targets.
+     */
+    private static boolean allowed(int[] counts, int remaining, int last,
+            int run, int maxRepeat, int t, int otherMax) {
+        if (counts[t] == 0 || (t == last && run == maxRepeat)) {
+            return false;
         }
+        int left = remaining - 1;
+        int count = counts[t] - 1;
+        int newRun = t == last ? run + 1 : 1;
+        return count <= maxRepeat - newRun + maxRepeat * (left - count)
+                && otherMax <= maxRepeat + maxRepeat * (left - otherMax);
     }
     
     /**
-     * Checks if a list of numbers has any elements that are repeated in
-     * maxRepeat consecutive positions in the list. 
-     * @param list : the list of numbers to check for repeats
-     * @param maxRepeat : maximum number of times the element can appear in
-     * consecutive positions in the list
-     * @return true if an element is repeated maxRepeat times, false otherwise
+     * Checks whether the remaining counts can be arranged after a run of
+     * length run of target last.
      */
-    private static boolean checkRepeats(List<Integer> list, int maxRepeat) {
-        boolean tooManyRepeats = true;
-        
-        for (int i = 0; i < list.size() - (maxRepeat); i++) {
-            tooManyRepeats = true;
-            for (int j = 1; j < maxRepeat+1; j++) {
-                if (list.get(i+j) != list.get(i)) {
-                    tooManyRepeats = false;
-                    break;
-                }
-            }
-
-            // if we fall out of the small loop without having set the flag to
-            // false, we have at least maxRepeat repeats
-            if (tooManyRepeats) {
-                return true;
+    private static boolean feasible(int[] counts, int remaining, int last,
+            int run, int maxRepeat) {
+        for (int t = 0; t < counts.length; t++) {
+            int others = remaining - counts[t];
+            int firstGap = t == last ? maxRepeat - run : maxRepeat;
+            if (counts[t] > firstGap + maxRepeat * others) {
+                return false;
             }
         }
-        
-        return false;
+        return true;
+    }
+    
+    /**
+     * Attaches a journal that trial events are recorded to from now on.
+     * @param journal : journal to append to, or null to stop recording
+     */
+    public void setJournal(TrialJournal journal) {
+        this.journal = journal;
     }
     
     /**
-     * Unimplemented.
+     * Marks the start of the current trial.
      */
     public void startTrial() {
+        trialRunning = true;
+        trialStartNanos = System.nanoTime();
+        restarts = 0;
+        record(TrialJournal.START, 0, 0, 0);
     }
     
     /**
@@ -104,16 +212,96 @@ public class ExperimentSession {
      * @param success : true if the trial was successful, false otherwise
      */
     public void endTrial(boolean success) {
+        endTrial(success, null);
+    }
+    
+    /**
+     * Increments the trial counter and updates the accuracy values, recording
+     * where the trial ended.
+     * @param success : true if the trial was successful, false otherwise
+     * @param finalPosition : position at the end of the trial, or null
+     */
+    public void endTrial(boolean success, Position finalPosition) {
+        if (finalPosition != null) {
+            record(TrialJournal.END, success ? 1 : 0, finalPosition.getQ1(),
+                    finalPosition.getQ2());
+        } else {
+            record(TrialJournal.END, success ? 1 : 0, 0, 0);
+        }
+        
         successes[getCurrentTarget()][0] += success ? 1 : 0;
         successes[getCurrentTarget()][1] += 1;
         currentTrial++;
+        trialRunning = false;
     }
     
     /**
-     * Unimplemented.
+     * Restarts the current trial without counting an attempt, e.g. after
+     * the participant lost track of the target.
      */
     public void restartTrial() {
-
+        restarts++;
+        trialStartNanos = System.nanoTime();
+        trialRunning = true;
+        record(TrialJournal.RESTART, 0, 0, 0);
+    }
+    
+    /**
+     * Records a transition of the controller to a new state.
+     * @param state : the new state, recorded by its ordinal (ordinals above
+     * 255 do not fit in a journal record and are recorded as 255)
+     */
+    public void stateChanged(Enum<?> state) {
+        record(TrialJournal.STATE, Math.min(state.ordinal(), 0xff), 0, 0);
+    }
+    
+    /**
+     * Records a point on the trajectory of the current trial.
+     * @param position : current position
+     */
+    public void recordPosition(Position position) {
+        record(TrialJournal.POSITION, 0, position.getQ1(), position.getQ2());
+    }
+    
+    /**
+     * Appends an event for the current trial to the journal, if any. A
+     * failing journal must not stop the experiment, so errors are only
+     * reported.
+     */
+    private void record(byte type, int value, float q1, float q2) {
+        if (journal == null || currentTrial > numTrials) {
+            return;
+        }
+        try {
+            journal.append(type, value, currentTrial, getCurrentTarget(),
+                    restarts, q1, q2);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * @return whether a trial has been started and not yet ended
+     */
+    public boolean isTrialRunning() {
+        return trialRunning;
+    }
+    
+    /**
+     * @return nanoseconds since the current trial was (re)started, or 0 if
+     * no trial is running
+     */
+    public long getTrialElapsedNanos() {
+        return trialRunning ? System.nanoTime() - trialStartNanos : 0;
+    }
+    
+    /**
+     * @return the number of times the current trial was restarted
+     */
+    public int getRestartCount() {
+        return restarts;
     }
     
     /**
@@ -129,7 +317,25 @@ public class ExperimentSession {
      * @return the current goal target index
      */
     public int getCurrentTarget() {
-        return targetSequence.get(currentTrial-1);
+        return targetSequence[currentTrial-1];
+    }
+    
+    /**
+     * Gets the target index (0-indexed) of a trial.
+     * @param trial : trial number (1-indexed)
+     * @return the goal target index of the trial
+     */
+    public int getTarget(int trial) {
+        return targetSequence[trial-1];
+    }
+    
+    /**
+     * Gets the seed the target sequence was generated from, for reproducing
+     * the session.
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
     }
     
     /**
@@ -0,0 +1,167 @@
+package rascal.libemg;
+
+/**
+ * A preallocated block of normalized (-1 to 1) samples for one or more
+ * channels. Samples are stored channel-major: channel c's getLength()
+ * samples start at getOffset(c) in getData(). A block can also be a view
+ * onto a larger buffer (e.g. an analysis window). Blocks are reused for
+ * every read, so listeners must copy the data if they need it after their
+ * callback returns.
+ * <p>
+ * Each block also carries where it came from: a sequence number (gaps mean
+ * blocks were dropped), the source frame position of its first sample (gaps
+ * beyond the block length mean frames were lost) and a System.nanoTime()
+ * capture timestamp for measuring latency.
+ */
+public class SampleBlock {
+    private final float[] data;
+    private final int channels;
+    private int offset;
+    private int length;
+    private int channelStride;
+    
+    private long sequence;
+    private long framePosition;
+    private long captureNanos;
+    
+    /**
+     * Allocates storage for a single-channel block of samples.
+     * @param length : number of samples the block holds
+     */
+    public SampleBlock(int length) {
+        this(length, 1);
+    }
+    
+    /**
+     * Allocates storage for a multi-channel block of samples.
+     * @param length : number of samples per channel
+     * @param channels : number of channels
+     */
+    public SampleBlock(int length, int channels) {
+        this(new float[length * channels], channels, length);
+    }
+    
+    /**
+     * Creates a single-channel block viewing all of an existing array.
+     * @param data : the backing array
+     */
+    public SampleBlock(float[] data) {
+        this(data, 1, data.length);
+    }
+    
+    /**
+     * Creates a block viewing an existing channel-major array.
+     * @param data : the backing array
+     * @param channels : number of channels
+     * @param channelStride : distance between the first samples of two
+     * consecutive channels
+     */
+    public SampleBlock(float[] data, int channels, int channelStride) {
+        this.data = data;
+        this.channels = channels;
+        this.channelStride = channelStride;
+        this.offset = 0;
+        this.length = channelStride;
+    }
+    
+    /**
+     * Moves the view to a different slice of the backing array.
+     * @param offset : index of the first sample of channel 0
+     * @param length : number of samples per channel
+     */
+    void setView(int offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    /**
+     * Sets where the block came from.
+     * @param sequence : sequence number of the block
+     * @param framePosition : source frame position of the first sample
+     * @param captureNanos : System.nanoTime() when the block was captured
+     */
+    void setTimestamp(long sequence, long framePosition, long captureNanos) {
+        this.sequence = sequence;
+        this.framePosition = framePosition;
+        this.captureNanos = captureNanos;
+    }
+    
+    /**
+     * Copies the sequence number, frame position and capture time of
+     * another block.
+     * @param other : the block to copy from
+     */
+    void setTimestamp(SampleBlock other) {
+        setTimestamp(other.sequence, other.framePosition, other.captureNanos);
+    }
+    
+    /**
+     * Gets the sequence number of the block. Consecutive blocks read by the
+     * sensor have consecutive numbers, so a gap means blocks were dropped.
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+    
+    /**
+     * Gets the position of the block's first sample in frames of the source
+     * (i.e. at the source's sample rate, before downsampling): the source's frame position when the sensor
+     * started plus the frames read, skipped or lost before this block.
+     * @return the frame position
+     */
+    public long getFramePosition() {
+        return framePosition;
+    }
+    
+    /**
+     * Gets the System.nanoTime() at which the block's last frame was read
+     * from the source.
+     * @return the capture timestamp in nanoseconds
+     */
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+    
+    /**
+     * Gets the backing sample array of the block.
+     * @return the samples
+     */
+    public float[] getData() {
+        return data;
+    }
+    
+    /**
+     * Gets the index of the first sample of the block (channel 0) in
+     * getData().
+     * @return the block offset
+     */
+    public int getOffset() {
+        return offset;
+    }
+    
+    /**
+     * Gets the index of the first sample of a channel in getData().
+     * @param channel : the channel index
+     * @return the offset of that channel's samples
+     */
+    public int getOffset(int channel) {
+        return offset + channel * channelStride;
+    }
+    
+    /**
+     * Gets the number of samples in the block for each channel.
+     * @return the block length
+     */
+    public int getLength() {
+        return length;
+    }
+    
+    /**
+     * Gets the number of channels in the block.
+     * @return the channel count
+     */
+    public int getChannelCount() {
+        return channels;
+    }
+}
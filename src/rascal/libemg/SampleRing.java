@@ -0,0 +1,231 @@
+package rascal.libemg;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring of preallocated
+ * SampleBlocks. The producer (the capture thread) claims a free slot, fills
+ * it and publishes it; the consumer (the processing thread) takes the oldest
+ * published slot, processes it and releases it. The consumer never blocks
+ * the producer: if the ring is full, the producer's claim fails and the
+ * block is counted as an overrun instead. A producer that must not lose
+ * data can use awaitClaim() to park until the consumer releases a slot.
+ * <p>
+ * Only one thread may call claim()/publish() and only one thread may call
+ * take()/poll()/release().
+ */
+public class SampleRing {
+    
+    /**
+     * How the consumer waits for the producer when the ring is empty.
+     */
+    public enum WaitStrategy {
+        /** Busy-spin. Lowest latency, but burns a full core. */
+        SPIN,
+        /** Spin while yielding the processor to other threads. */
+        YIELD,
+        /** Park the consumer until the producer publishes a block. */
+        PARK
+    }
+    
+    private final SampleBlock[] slots;
+    private final int mask;
+    
+    /** Sequence of the next slot the producer will publish */
+    private final AtomicLong head = new AtomicLong();
+    /** Sequence of the next slot the consumer will take */
+    private final AtomicLong tail = new AtomicLong();
+    
+    /** Only written by the producer thread */
+    private volatile long overruns = 0;
+    private volatile Thread waiter;
+    /** Producer parked in awaitClaim() */
+    private volatile Thread claimer;
+    private volatile boolean closed = false;
+    private volatile WaitStrategy waitStrategy;
+    
+    /**
+     * Creates a ring and preallocates all of its blocks.
+     * @param capacity : number of blocks, rounded up to a power of two
+     * @param blockLength : number of samples per channel in each block
+     * @param channels : number of channels in each block
+     * @param waitStrategy : how the consumer waits while the ring is empty
+     */
+    public SampleRing(int capacity, int blockLength, int channels,
+            WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        
+        slots = new SampleBlock[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new SampleBlock(blockLength, channels);
+        }
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+    
+    /**
+     * Claims the next free block for writing. Producer only.
+     * @return the block to fill, or null if the ring is full (the overrun is
+     * counted and the caller should drop its data)
+     */
+    public SampleBlock claim() {
+        long h = head.get();
+        if (h - tail.get() >= slots.length) {
+            overruns++;
+            return null;
+        }
+        
+        return slots[(int)(h & mask)];
+    }
+    
+    /**
+     * Claims the next free block for writing, parking until the consumer
+     * releases one if the ring is full. Nothing is counted as an overrun.
+     * Producer only.
+     * @return the block to fill, or null if the ring was closed or the
+     * calling thread was interrupted while waiting
+     */
+    public SampleBlock awaitClaim() {
+        long h = head.get();
+        
+        while (h - tail.get() >= slots.length) {
+            if (closed || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            claimer = Thread.currentThread();
+            if (h - tail.get() >= slots.length && !closed) {
+                LockSupport.park(this);
+            }
+            claimer = null;
+        }
+        
+        return slots[(int)(h & mask)];
+    }
+    
+    /**
+     * Makes the block returned by the last claim() visible to the consumer.
+     * Producer only.
+     */
+    public void publish() {
+        head.set(head.get() + 1);
+        
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+    
+    /**
+     * Gets the oldest published block without waiting. Consumer only.
+     * @return the block, or null if the ring is empty
+     */
+    public SampleBlock poll() {
+        long t = tail.get();
+        if (head.get() <= t) {
+            return null;
+        }
+        
+        return slots[(int)(t & mask)];
+    }
+    
+    /**
+     * Gets the oldest published block, waiting according to the wait
+     * strategy if the ring is empty. Consumer only.
+     * @return the block, or null if the ring was closed or the calling thread
+     * was interrupted while waiting
+     */
+    public SampleBlock take() {
+        long t = tail.get();
+        
+        while (head.get() <= t) {
+            if (closed || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            
+            switch (waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                waiter = Thread.currentThread();
+                if (head.get() <= t && !closed) {
+                    LockSupport.park(this);
+                }
+                waiter = null;
+                break;
+            }
+        }
+        
+        return slots[(int)(t & mask)];
+    }
+    
+    /**
+     * Returns the block obtained from take() or poll() to the producer.
+     * Consumer only.
+     */
+    public void release() {
+        tail.set(tail.get() + 1);
+        
+        Thread c = claimer;
+        if (c != null) {
+            LockSupport.unpark(c);
+        }
+    }
+    
+    /**
+     * Wakes up both sides and makes take() return null once the ring is
+     * empty and awaitClaim() return null from now on.
+     */
+    public void close() {
+        closed = true;
+        
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        Thread c = claimer;
+        if (c != null) {
+            LockSupport.unpark(c);
+        }
+    }
+    
+    /**
+     * Gets the number of published blocks not yet released by the consumer.
+     * @return the current occupancy
+     */
+    public int size() {
+        return (int)(head.get() - tail.get());
+    }
+    
+    /**
+     * Gets the number of blocks in the ring.
+     * @return the capacity
+     */
+    public int capacity() {
+        return slots.length;
+    }
+    
+    /**
+     * Gets the number of blocks dropped because the ring was full.
+     * @return the overrun count
+     */
+    public long getOverrunCount() {
+        return overruns;
+    }
+    
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+    
+    /**
+     * Changes how the consumer waits. Takes effect the next time the
+     * consumer finds the ring empty.
+     * @param waitStrategy : the new wait strategy
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+}
@@ -0,0 +1,247 @@
+package rascal.libemg;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A listener registered with an EMGSensor, together with its own bounded
+ * queue of blocks and its own delivery thread. The sensor's processing thread
+ * copies each block into the queue of every subscription, so a slow listener
+ * only ever delays itself. What happens when a listener falls a full queue
+ * behind is set by its Policy. An exception thrown by the listener is
+ * reported and the block skipped; delivery goes on with the next one.
+ * <p>
+ * Queue slots are preallocated and recycled, so nothing is allocated per
+ * block once the block size is known.
+ */
+public abstract class Subscription implements Runnable {
+    
+    /**
+     * What to do with a new block when the listener's queue is full.
+     */
+    public enum Policy {
+        /** Wait for the listener to catch up. Nothing is lost, but the
+         * processing thread (and so every other listener) is held up. */
+        BLOCK,
+        /** Discard the oldest queued block to make room. */
+        DROP_OLDEST,
+        /** Keep only the latest block; the queue capacity is always 1. */
+        CONFLATE
+    }
+    
+    private final Object listener;
+    private final Policy policy;
+    private final SampleBlock[] slots;
+    private final long[] queuedAt;
+    /** Block being delivered, swapped with a queue slot so the slot can be
+     * refilled while the listener runs */
+    private SampleBlock current;
+    private int head = 0;
+    private int count = 0;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private volatile boolean closed = false;
+    private Thread thread;
+    
+    private volatile long delivered = 0;
+    private volatile long dropped = 0;
+    
+    /**
+     * Creates a subscription. Call start() to begin delivery.
+     * @param listener : the listener, used to find the subscription again
+     * @param policy : what to do when the queue is full
+     * @param capacity : number of blocks the queue can hold
+     */
+    Subscription(Object listener, Policy policy, int capacity) {
+        this.listener = listener;
+        this.policy = policy;
+        
+        int size = policy == Policy.CONFLATE ? 1 : Math.max(1, capacity);
+        slots = new SampleBlock[size];
+        queuedAt = new long[size];
+    }
+    
+    /**
+     * Hands a block to the listener.
+     * @param block : a private copy of the block, reused after this returns
+     */
+    protected abstract void deliver(SampleBlock block);
+    
+    /**
+     * Starts the delivery thread.
+     * @param name : name of the thread
+     */
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Copies a block into the queue, applying the policy if it is full.
+     * Called from the sensor's processing thread.
+     * @param block : the block to queue
+     */
+    void offer(SampleBlock block) {
+        lock.lock();
+        try {
+            while (count == slots.length) {
+                if (closed) {
+                    return;
+                }
+                if (policy == Policy.BLOCK) {
+                    notFull.awaitUninterruptibly();
+                } else {
+                    head = (head + 1) % slots.length;
+                    count--;
+                    dropped++;
+                }
+            }
+            
+            int tail = (head + count) % slots.length;
+            slots[tail] = copy(block, slots[tail]);
+            queuedAt[tail] = System.nanoTime();
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Copies a block into a compact, channel-major destination block,
+     * reallocating the destination only if the block shape changed.
+     */
+    private static SampleBlock copy(SampleBlock src, SampleBlock dst) {
+        int length = src.getLength();
+        int channels = src.getChannelCount();
+        
+        if (dst == null || dst.getChannelCount() != channels
+                || dst.getData().length != length * channels) {
+            dst = new SampleBlock(length, channels);
+        }
+        
+        for (int c = 0; c < channels; c++) {
+            System.arraycopy(src.getData(), src.getOffset(c), dst.getData(),
+                    dst.getOffset(c), length);
+        }
+        dst.setTimestamp(src);
+        
+        return dst;
+    }
+    
+    @Override
+    public void run() {
+        while (true) {
+            lock.lock();
+            try {
+                while (count == 0 && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (count == 0) {
+                    // closed and fully drained
+                    return;
+                }
+                
+                SampleBlock next = slots[head];
+                slots[head] = current;
+                current = next;
+                head = (head + 1) % slots.length;
+                count--;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            
+            try {
+                deliver(current);
+                delivered++;
+            } catch (RuntimeException e) {
+                // a failing listener must not kill the delivery thread, or
+                // the queue would never drain and BLOCK offers would hang
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * Stops accepting blocks. Blocks already queued are still delivered
+     * before the delivery thread exits.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Waits for the delivery thread to finish after close().
+     * @param millis : maximum time to wait
+     */
+    void join(long millis) throws InterruptedException {
+        if (thread != null) {
+            thread.join(millis);
+        }
+    }
+    
+    /**
+     * Gets the listener this subscription delivers to.
+     * @return the listener
+     */
+    public Object getListener() {
+        return listener;
+    }
+    
+    public Policy getPolicy() {
+        return policy;
+    }
+    
+    /**
+     * Gets the number of blocks queued but not yet delivered.
+     * @return the lag in blocks
+     */
+    public int getLag() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gets how long the oldest undelivered block has been waiting.
+     * @return the lag in nanoseconds, or 0 if the queue is empty
+     */
+    public long getLagNanos() {
+        lock.lock();
+        try {
+            return count == 0 ? 0 : System.nanoTime() - queuedAt[head];
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Gets the number of blocks discarded because the queue was full.
+     * @return the drop count
+     */
+    public long getDropCount() {
+        return dropped;
+    }
+    
+    /**
+     * Gets the number of blocks handed to the listener so far.
+     * @return the delivered count
+     */
+    public long getDeliveredCount() {
+        return delivered;
+    }
+}
@@ -0,0 +1,196 @@
+package rascal.libemg.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Replays a recording from a WAV or raw PCM file. The file is memory-mapped,
+ * so reads are plain memory copies. Replay can be paced at 1x (as if the
+ * samples were coming from the microphone) or run as fast as the consumer
+ * reads, e.g. for benchmarking or processing a recording offline. An unpaced
+ * replay is not real-time, so the EMGSensor waits for its pipeline to make
+ * room rather than drop blocks, and every sample is processed.
+ */
+public class FileSampleSource implements SampleSource {
+    
+    private final AudioFormat format;
+    private final ByteBuffer data;
+    private final RealTimePacer pacer;
+    private long framesRead = 0;
+    
+    /**
+     * Creates a source replaying a 16-bit PCM WAV file.
+     * @param file : the WAV file
+     * @param realTime : true to pace the replay at the file's sample rate,
+     * false to deliver data as fast as it is read
+     * @throws IOException if the file can not be read or is not a 16-bit PCM
+     * WAV file
+     */
+    public FileSampleSource(File file, boolean realTime) throws IOException {
+        ByteBuffer wav = map(file);
+        wav.order(ByteOrder.LITTLE_ENDIAN);
+        
+        if (wav.remaining() < 12 || wav.getInt(0) != 0x46464952 /* RIFF */
+                || wav.getInt(8) != 0x45564157 /* WAVE */) {
+            throw new IOException(file + " is not a WAV file");
+        }
+        
+        AudioFormat fmt = null;
+        long pos = 12;
+        while (pos + 8 <= wav.limit()) {
+            int id = wav.getInt((int)pos);
+            long size = wav.getInt((int)pos + 4) & 0xffffffffL;
+            int body = (int)pos + 8;
+            
+            if (id == 0x20746d66 /* "fmt " */) {
+                int encoding = wav.getShort(body) & 0xffff;
+                int channels = wav.getShort(body + 2) & 0xffff;
+                int rate = wav.getInt(body + 4);
+                int bits = wav.getShort(body + 14) & 0xffff;
+                if (encoding != 1 || bits != 16) {
+                    throw new IOException(file + " is not 16-bit PCM");
+                }
+                fmt = new AudioFormat(rate, 16, channels, true, false);
+            } else if (id == 0x61746164 /* "data" */) {
+                if (fmt == null) {
+                    throw new IOException(file + " has no fmt chunk");
+                }
+                wav.limit((int)Math.min(wav.limit(), body + size));
+                wav.position(body);
+                break;
+            }
+            
+            // chunks are padded to an even number of bytes
+            pos = body + size + (size & 1);
+        }
+        
+        if (fmt == null || wav.position() == 0) {
+            throw new IOException(file + " has no data chunk");
+        }
+        
+        this.format = fmt;
+        this.data = wav.slice();
+        this.pacer = realTime ? new RealTimePacer(fmt.getFrameRate()) : null;
+    }
+    
+    /**
+     * Creates a source replaying a headerless PCM file.
+     * @param file : the raw PCM file
+     * @param format : the format the samples in the file are stored in
+     * @param realTime : true to pace the replay at the format's sample rate,
+     * false to deliver data as fast as it is read
+     * @throws IOException if the file can not be read
+     */
+    public FileSampleSource(File file, AudioFormat format, boolean realTime)
+            throws IOException {
+        this.format = format;
+        this.data = map(file);
+        this.pacer = realTime ? new RealTimePacer(format.getFrameRate()) : null;
+    }
+    
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+            return buf;
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+    
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+    
+    @Override
+    public void open() {
+    }
+    
+    @Override
+    public void start() {
+        if (pacer != null) {
+            pacer.start(framesRead);
+        }
+    }
+    
+    @Override
+    public void stop() {
+        if (pacer != null) {
+            pacer.stop();
+        }
+    }
+    
+    @Override
+    public void close() {
+        stop();
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int frameSize = format.getFrameSize();
+        len = Math.min(len, data.remaining());
+        len -= len % frameSize;
+        if (len <= 0) {
+            return -1;
+        }
+        
+        long frames = len / frameSize;
+        if (pacer != null && !pacer.awaitFrame(framesRead + frames)) {
+            return 0;
+        }
+        
+        data.get(b, off, len);
+        framesRead += frames;
+        
+        return len;
+    }
+    
+    @Override
+    public long getLongFramePosition() {
+        return framesRead;
+    }
+    
+    @Override
+    public int available() {
+        long due = pacer != null ? pacer.dueFrame() : -1;
+        if (due <= framesRead) {
+            return 0;
+        }
+        
+        return (int)Math.min(Integer.MAX_VALUE,
+                (due - framesRead) * format.getFrameSize());
+    }
+    
+    @Override
+    public void flush() {
+        long due = pacer != null ? pacer.dueFrame() : -1;
+        int frameSize = format.getFrameSize();
+        long frames = Math.min(due - framesRead, data.remaining() / frameSize);
+        if (frames > 0) {
+            data.position(data.position() + (int)(frames * frameSize));
+            framesRead += frames;
+        }
+    }
+    
+    @Override
+    public boolean isRealTime() {
+        return pacer != null;
+    }
+    
+    @Override
+    public int getBufferSize() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+}
@@ -0,0 +1,104 @@
+package rascal.libemg.io;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Reads samples from an audio capture line (i.e. the microphone input the
+ * EMG hardware is plugged into).
+ */
+public class LineSampleSource implements SampleSource {
+    
+    private AudioFormat format;
+    private int bufferSize;
+    private TargetDataLine line;
+    
+    /**
+     * Creates a source for the default capture line supporting the format,
+     * using the line's default buffer size. The line is not acquired until
+     * open() is called.
+     * @param format : the format to capture in
+     */
+    public LineSampleSource(AudioFormat format) {
+        this(format, AudioSystem.NOT_SPECIFIED);
+    }
+    
+    /**
+     * Creates a source for the default capture line supporting the format.
+     * The line is not acquired until open() is called.
+     * @param format : the format to capture in
+     * @param bufferSize : requested size of the line's buffer in bytes, i.e.
+     * how far the reader can fall behind before data is lost
+     */
+    public LineSampleSource(AudioFormat format, int bufferSize) {
+        this.format = format;
+        this.bufferSize = bufferSize;
+    }
+    
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+    
+    @Override
+    public void open() throws LineUnavailableException {
+        line = AudioSystem.getTargetDataLine(format);
+        if (bufferSize == AudioSystem.NOT_SPECIFIED) {
+            line.open(format);
+        } else {
+            line.open(format, bufferSize);
+        }
+        System.out.println("Microphone Init");
+    }
+    
+    @Override
+    public void start() {
+        line.start();
+    }
+    
+    @Override
+    public void stop() {
+        line.stop();
+    }
+    
+    @Override
+    public void close() {
+        line.close();
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) {
+        return line.read(b, off, len);
+    }
+    
+    @Override
+    public long getLongFramePosition() {
+        return line.getLongFramePosition();
+    }
+    
+    @Override
+    public int available() {
+        return line.available();
+    }
+    
+    @Override
+    public void flush() {
+        line.flush();
+    }
+    
+    /**
+     * Gets the size of the line's buffer, which may differ from the size
+     * requested.
+     */
+    @Override
+    public boolean isRealTime() {
+        return true;
+    }
+    
+    @Override
+    public int getBufferSize() {
+        return line.getBufferSize();
+    }
+}
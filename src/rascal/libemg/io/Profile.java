@@ -0,0 +1,224 @@
+package rascal.libemg.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import rascal.libemg.Calibration;
+import rascal.libemg.Position;
+
+/**
+ * Settings of one participant, stored by ProfileStore: the normalization
+ * (MVC) level and calibration values, controller thresholds and speeds, and
+ * mains notch settings. A profile also carries the history of previous saves
+ * so calibration drift across sessions can be analyzed.
+ */
+public class Profile {
+
+    private final String participantId;
+    private long savedMillis = 0;
+
+    private float calibration;
+    private float[] calibrationQ1 = new float[0];
+    private float[] calibrationQ2 = new float[0];
+    private float lowThreshold;
+    private float highThreshold;
+    private float forwardIncrement;
+    private float forwardSlow;
+    private float rotationIncrement;
+    /** Nominal mains frequency, or 0 if the notch is disabled */
+    private float mainsHz = 0;
+    private int mainsHarmonics = 0;
+
+    private final List<HistoryEntry> history = new ArrayList<HistoryEntry>();
+
+    /**
+     * A snapshot of the calibration and thresholds as of one save.
+     */
+    public static class HistoryEntry {
+        private final long timeMillis;
+        private final float calibration;
+        private final float lowThreshold;
+        private final float highThreshold;
+
+        public HistoryEntry(long timeMillis, float calibration,
+                float lowThreshold, float highThreshold) {
+            this.timeMillis = timeMillis;
+            this.calibration = calibration;
+            this.lowThreshold = lowThreshold;
+            this.highThreshold = highThreshold;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public float getCalibration() {
+            return calibration;
+        }
+
+        public float getLowThreshold() {
+            return lowThreshold;
+        }
+
+        public float getHighThreshold() {
+            return highThreshold;
+        }
+    }
+
+    /**
+     * Creates an empty profile.
+     * @param participantId : participant the profile belongs to
+     */
+    public Profile(String participantId) {
+        this.participantId = participantId;
+    }
+
+    public String getParticipantId() {
+        return participantId;
+    }
+
+    /**
+     * @return When the profile was last saved (System.currentTimeMillis()),
+     * or 0 if it never was.
+     */
+    public long getSavedMillis() {
+        return savedMillis;
+    }
+
+    void setSavedMillis(long millis) {
+        savedMillis = millis;
+    }
+
+    /**
+     * @return The level input is normalized by (the MVC estimate).
+     */
+    public float getCalibration() {
+        return calibration;
+    }
+
+    public void setCalibration(float calibration) {
+        this.calibration = calibration;
+    }
+
+    /**
+     * Stores the individual calibration values of a Calibration.
+     * @param cal : calibration to copy the values from
+     */
+    public void setCalibrationValues(Calibration cal) {
+        List<Position> values = new ArrayList<Position>();
+        for (Position p : cal) {
+            values.add(p);
+        }
+        calibrationQ1 = new float[values.size()];
+        calibrationQ2 = new float[values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            calibrationQ1[i] = values.get(i).getQ1();
+            calibrationQ2[i] = values.get(i).getQ2();
+        }
+    }
+
+    /**
+     * @return A new Calibration holding the stored calibration values.
+     */
+    public Calibration getCalibrationValues() {
+        Calibration cal = new Calibration();
+        for (int i = 0; i < calibrationQ1.length; i++) {
+            cal.addCalibrationValue(
+                    new Position(calibrationQ1[i], calibrationQ2[i]));
+        }
+        return cal;
+    }
+
+    void setCalibrationValues(float[] q1, float[] q2) {
+        calibrationQ1 = q1;
+        calibrationQ2 = q2;
+    }
+
+    float[] getCalibrationQ1() {
+        return calibrationQ1;
+    }
+
+    float[] getCalibrationQ2() {
+        return calibrationQ2;
+    }
+
+    public float getLowThreshold() {
+        return lowThreshold;
+    }
+
+    public void setLowThreshold(float threshold) {
+        lowThreshold = threshold;
+    }
+
+    public float getHighThreshold() {
+        return highThreshold;
+    }
+
+    public void setHighThreshold(float threshold) {
+        highThreshold = threshold;
+    }
+
+    public float getForwardIncrement() {
+        return forwardIncrement;
+    }
+
+    public void setForwardIncrement(float val) {
+        forwardIncrement = val;
+    }
+
+    public float getForwardSlow() {
+        return forwardSlow;
+    }
+
+    public void setForwardSlow(float val) {
+        forwardSlow = val;
+    }
+
+    public float getRotationIncrement() {
+        return rotationIncrement;
+    }
+
+    public void setRotationIncrement(float val) {
+        rotationIncrement = val;
+    }
+
+    /**
+     * @return The nominal mains frequency to notch out, or 0 if disabled.
+     */
+    public float getMainsHz() {
+        return mainsHz;
+    }
+
+    public int getMainsHarmonics() {
+        return mainsHarmonics;
+    }
+
+    /**
+     * Sets the mains notch configuration.
+     * @param mainsHz : nominal mains frequency, or 0 to disable the notch
+     * @param harmonics : number of harmonics to remove besides the
+     * fundamental
+     */
+    public void setMainsNotch(float mainsHz, int harmonics) {
+        this.mainsHz = mainsHz;
+        mainsHarmonics = harmonics;
+    }
+
+    /**
+     * @return The previous saves, oldest first.
+     */
+    public List<HistoryEntry> getHistory() {
+        return Collections.unmodifiableList(history);
+    }
+
+    void addHistory(HistoryEntry entry) {
+        history.add(entry);
+    }
+
+    void trimHistory(int max) {
+        if (history.size() > max) {
+            history.subList(0, history.size() - max).clear();
+        }
+    }
+}
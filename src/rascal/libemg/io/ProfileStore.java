@@ -0,0 +1,235 @@
+package rascal.libemg.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Stores one Profile per participant in a local directory. Each profile is
+ * a small binary file which is read in one go, so loading at startup takes
+ * milliseconds. Saves are atomic: the new file is written and synced under a
+ * temporary name, then moved over the old one, so a crash never leaves a
+ * half-written profile. Every save also appends a history entry (up to
+ * MAX_HISTORY) to track calibration drift across sessions. A profile that
+ * cannot be parsed is moved aside on loading (to its name plus
+ * CORRUPT_SUFFIX and the time) so a later save cannot replace it and its
+ * history can still be recovered by hand.
+ * <p>
+ * File layout (big-endian):
+ * <pre>
+ *   int   MAGIC
+ *   short VERSION
+ *   long  time of the save (ms since the epoch)
+ *   UTF   participant id
+ *   float calibration, low threshold, high threshold
+ *   float forward increment, forward slow, rotation increment
+ *   float mains frequency (0 if the notch is disabled)
+ *   int   mains harmonics
+ *   int   number of calibration values, then (float q1, float q2) each
+ *   int   number of history entries, then per entry:
+ *         long time (ms), float calibration, low and high threshold
+ *   int   CRC32 of everything before it
+ * </pre>
+ */
+public class ProfileStore {
+
+    public static final int MAGIC = 0x454d4750; // "EMGP"
+    public static final short VERSION = 1;
+    public static final String EXTENSION = ".profile";
+    /** Added to the name of a corrupt profile, followed by the time (ms) */
+    public static final String CORRUPT_SUFFIX = ".corrupt-";
+    /** History entries kept per profile, oldest dropped first */
+    public static final int MAX_HISTORY = 1000;
+
+    private final File directory;
+
+    /**
+     * Creates a store, creating its directory if needed.
+     * @param directory : directory holding the profile files
+     * @throws IOException if the directory cannot be created
+     */
+    public ProfileStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create profile directory "
+                    + directory);
+        }
+    }
+
+    /**
+     * Gets the file a participant's profile is stored in. Characters other
+     * than letters, digits, '-' and '_' in the id are replaced.
+     * @param participantId : participant id
+     * @return the profile file
+     */
+    public File getFile(String participantId) {
+        return new File(directory,
+                participantId.replaceAll("[^A-Za-z0-9_-]", "_") + EXTENSION);
+    }
+
+    /**
+     * Loads a participant's profile. A corrupt profile is moved aside, so
+     * saving afterwards starts a new profile instead of overwriting it.
+     * @param participantId : participant id
+     * @return the profile, or null if none has been saved
+     * @throws IOException if the file cannot be read or is corrupt, in which
+     * case the message says where it was moved
+     */
+    public Profile load(String participantId) throws IOException {
+        File file = getFile(participantId);
+        if (!file.exists()) {
+            return null;
+        }
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        try {
+            return parse(bytes, file);
+        } catch (IOException e) {
+            File aside = new File(directory, file.getName() + CORRUPT_SUFFIX
+                    + System.currentTimeMillis());
+            Files.move(file.toPath(), aside.toPath());
+            throw new IOException(e.getMessage() + "; moved to " + aside, e);
+        }
+    }
+
+    private static Profile parse(byte[] bytes, File file) throws IOException {
+        if (bytes.length < 4) {
+            throw new IOException("Truncated profile " + file);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                bytes, bytes.length - 4, 4));
+        if (in.readInt() != (int)crc.getValue()) {
+            throw new IOException("Checksum mismatch in profile " + file);
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a profile file: " + file);
+        }
+        short version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported profile version " + version);
+        }
+
+        long saved = in.readLong();
+        Profile profile = new Profile(in.readUTF());
+        profile.setSavedMillis(saved);
+        profile.setCalibration(in.readFloat());
+        profile.setLowThreshold(in.readFloat());
+        profile.setHighThreshold(in.readFloat());
+        profile.setForwardIncrement(in.readFloat());
+        profile.setForwardSlow(in.readFloat());
+        profile.setRotationIncrement(in.readFloat());
+        float mainsHz = in.readFloat();
+        profile.setMainsNotch(mainsHz, in.readInt());
+
+        int values = in.readInt();
+        float[] q1 = new float[values];
+        float[] q2 = new float[values];
+        for (int i = 0; i < values; i++) {
+            q1[i] = in.readFloat();
+            q2[i] = in.readFloat();
+        }
+        profile.setCalibrationValues(q1, q2);
+
+        int entries = in.readInt();
+        for (int i = 0; i < entries; i++) {
+            profile.addHistory(new Profile.HistoryEntry(in.readLong(),
+                    in.readFloat(), in.readFloat(), in.readFloat()));
+        }
+
+        return profile;
+    }
+
+    /**
+     * Saves a profile atomically, adding a history entry for this save. The
+     * profile is only updated once the file is in place, so a failed save
+     * leaves it as it was.
+     * @param profile : profile to save
+     * @throws IOException if the profile cannot be written
+     */
+    public void save(Profile profile) throws IOException {
+        long now = System.currentTimeMillis();
+        Profile.HistoryEntry saved = new Profile.HistoryEntry(now,
+                profile.getCalibration(), profile.getLowThreshold(),
+                profile.getHighThreshold());
+        List<Profile.HistoryEntry> history =
+                new ArrayList<Profile.HistoryEntry>(profile.getHistory());
+        history.add(saved);
+        if (history.size() > MAX_HISTORY) {
+            history = history.subList(history.size() - MAX_HISTORY,
+                    history.size());
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeLong(now);
+        out.writeUTF(profile.getParticipantId());
+        out.writeFloat(profile.getCalibration());
+        out.writeFloat(profile.getLowThreshold());
+        out.writeFloat(profile.getHighThreshold());
+        out.writeFloat(profile.getForwardIncrement());
+        out.writeFloat(profile.getForwardSlow());
+        out.writeFloat(profile.getRotationIncrement());
+        out.writeFloat(profile.getMainsHz());
+        out.writeInt(profile.getMainsHarmonics());
+
+        float[] q1 = profile.getCalibrationQ1();
+        float[] q2 = profile.getCalibrationQ2();
+        out.writeInt(q1.length);
+        for (int i = 0; i < q1.length; i++) {
+            out.writeFloat(q1[i]);
+            out.writeFloat(q2[i]);
+        }
+
+        out.writeInt(history.size());
+        for (Profile.HistoryEntry entry : history) {
+            out.writeLong(entry.getTimeMillis());
+            out.writeFloat(entry.getCalibration());
+            out.writeFloat(entry.getLowThreshold());
+            out.writeFloat(entry.getHighThreshold());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int)crc.getValue());
+        out.flush();
+
+        File target = getFile(profile.getParticipantId());
+        File temp = File.createTempFile("profile", ".tmp", directory);
+        try {
+            try (FileOutputStream file = new FileOutputStream(temp)) {
+                bytes.writeTo(file);
+                file.getFD().sync();
+            }
+            try {
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+        
+        profile.setSavedMillis(now);
+        profile.addHistory(saved);
+        profile.trimHistory(MAX_HISTORY);
+    }
+}
@@ -0,0 +1,83 @@
+package rascal.libemg.io;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces a non-hardware source so it delivers frames no faster than a given
+ * frame rate, as a capture line would. Frames are counted from the last
+ * start() so pausing a source does not make it burst to catch up.
+ */
+class RealTimePacer {
+    
+    private final double nanosPerFrame;
+    private long startNanos;
+    private long startFrame;
+    private volatile boolean stopped = true;
+    private volatile Thread waiter;
+    
+    RealTimePacer(float frameRate) {
+        nanosPerFrame = 1e9 / frameRate;
+    }
+    
+    /**
+     * Restarts the clock.
+     * @param frame : the number of frames delivered so far
+     */
+    void start(long frame) {
+        startNanos = System.nanoTime();
+        startFrame = frame;
+        stopped = false;
+    }
+    
+    /**
+     * Makes a pending (and any future) awaitFrame() return false until the
+     * pacer is started again.
+     */
+    void stop() {
+        stopped = true;
+        
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+    
+    /**
+     * Gets the number of frames that are due by now.
+     * @return the frame count that should have been delivered, or -1 if the
+     * pacer is stopped
+     */
+    long dueFrame() {
+        if (stopped) {
+            return -1;
+        }
+        
+        return startFrame
+                + (long)((System.nanoTime() - startNanos) / nanosPerFrame);
+    }
+    
+    /**
+     * Parks the calling thread until the given frame is due.
+     * @param frame : frame count that is about to be delivered
+     * @return false if the pacer was stopped or the thread was interrupted
+     * while waiting
+     */
+    boolean awaitFrame(long frame) {
+        long due = startNanos + (long)((frame - startFrame) * nanosPerFrame);
+        long wait;
+        
+        waiter = Thread.currentThread();
+        try {
+            while ((wait = due - System.nanoTime()) > 0) {
+                if (stopped || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, wait);
+            }
+        } finally {
+            waiter = null;
+        }
+        
+        return !stopped;
+    }
+}
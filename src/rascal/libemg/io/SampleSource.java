@@ -0,0 +1,91 @@
+package rascal.libemg.io;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+
+/**
+ * A source of raw PCM sample data for the EMGSensor. The sensor only ever
+ * sees bytes in the source's AudioFormat, so every source (microphone, file
+ * replay, synthetic generator) goes through the same decoding and produces
+ * identically shaped blocks downstream.
+ */
+public interface SampleSource {
+    
+    /**
+     * Gets the format of the bytes returned by read(). EMGSensor supports
+     * 16-bit signed PCM in either byte order.
+     * @return the audio format of the source
+     */
+    public AudioFormat getFormat();
+    
+    /**
+     * Acquires any resources needed by the source. Called once by the
+     * EMGSensor before the first start().
+     * @throws LineUnavailableException if the underlying device can not be
+     * opened
+     */
+    public void open() throws LineUnavailableException;
+    
+    /**
+     * Starts (or resumes) delivering data.
+     */
+    public void start();
+    
+    /**
+     * Stops delivering data. A read() in progress returns early.
+     */
+    public void stop();
+    
+    /**
+     * Releases the source's resources. The source can not be used again.
+     */
+    public void close();
+    
+    /**
+     * Reads up to len bytes, blocking until they are available or the source
+     * is stopped.
+     * @param b : destination buffer
+     * @param off : offset in b to start writing at
+     * @param len : number of bytes requested, a multiple of the frame size
+     * @return the number of bytes read, or -1 if the source has no more data
+     */
+    public int read(byte[] b, int off, int len);
+    
+    /**
+     * Gets the position of the source in sample frames, counted from when it
+     * was opened. For a capture line this is the line's own frame position.
+     * @return the current frame position
+     */
+    public long getLongFramePosition();
+    
+    /**
+     * Gets the number of bytes that have been captured but not read yet,
+     * i.e. how far the reader is behind real time. Sources that are not
+     * paced in real time have no backlog and return 0.
+     * @return the backlog in bytes
+     */
+    public int available();
+    
+    /**
+     * Discards the backlog so the next read returns live data.
+     */
+    public void flush();
+    
+    /**
+     * Tells whether data arrives at the source's sample rate whether or not
+     * it is read, like a capture line or a paced replay. Such a source loses
+     * data if the reader falls behind, so the EMGSensor drops blocks rather
+     * than wait. A source that is not real-time only produces data when it
+     * is read, so the sensor waits for room instead and nothing is lost.
+     * @return true if the source is paced in real time
+     */
+    public boolean isRealTime();
+    
+    /**
+     * Gets the size of the buffer holding the backlog. Once the backlog
+     * reaches it, captured data is lost.
+     * @return the buffer size in bytes, or AudioSystem.NOT_SPECIFIED if the
+     * backlog can grow without losing data
+     */
+    public int getBufferSize();
+}
@@ -0,0 +1,230 @@
+package rascal.libemg.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import rascal.libemg.EMGSensor;
+import rascal.libemg.SampleBlock;
+
+/**
+ * Records every block read by an EMGSensor to a memory-mapped file. Blocks
+ * are appended to a preallocated region of the file that is mapped in
+ * chunks and grown as needed, so recording a block is a plain memory copy.
+ * Mapped pages are forced to disk on a background thread, so neither the
+ * capture thread nor the recorder's own delivery thread ever waits for I/O.
+ * Register it with a lossless policy, e.g.
+ * {@code sensor.addOnBlockListener(recorder, Subscription.Policy.BLOCK, 64)}.
+ * <p>
+ * File layout (big-endian):
+ * <pre>
+ * header, HEADER_SIZE bytes:
+ *   int   MAGIC
+ *   short VERSION
+ *   short HEADER_SIZE
+ *   float sample rate (Hz)
+ *   int   channels
+ *   float scale (divide a stored sample by this to get -1 to 1)
+ *   int   block length (samples per channel)
+ *   long  number of blocks recorded
+ *   float source sample rate (Hz), the rate of the frame positions
+ * then one fixed-size record per block:
+ *   long  source frame position of the first sample
+ *   long  System.nanoTime() when the block was captured
+ *   short samples[channels][block length], channel-major
+ * </pre>
+ */
+public class SessionRecorder implements EMGSensor.OnBlockListener {
+    
+    public static final int MAGIC = 0x454d4752; // "EMGR"
+    public static final short VERSION = 2;
+    public static final short HEADER_SIZE = 64;
+    /** Scale used to store the normalized samples as 16-bit integers */
+    public static final float SCALE = 32767f;
+    /** Size of each mapped chunk of the file */
+    public static final int CHUNK_SIZE = 16 << 20;
+    /** Interval between background flushes of the mapped file */
+    public static final long FLUSH_INTERVAL_MS = 1000;
+    
+    private static final int RECORD_HEADER_SIZE = 16;
+    
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int channels;
+    private final int blockLength;
+    private final int recordSize;
+    private final int recordsPerChunk;
+    
+    private final MappedByteBuffer header;
+    /** Offset of the block count in the header, taken as it is written */
+    private final int countOffset;
+    private volatile MappedByteBuffer chunk;
+    private long chunkStart;
+    /** Chunks that are full and need one last flush */
+    private final ConcurrentLinkedQueue<MappedByteBuffer> retired =
+            new ConcurrentLinkedQueue<MappedByteBuffer>();
+    private final ScheduledExecutorService flusher;
+    
+    private long blockCount = 0;
+    private volatile boolean failed = false;
+    
+    /**
+     * Creates a recorder for the blocks of a sensor.
+     * @param file : the file to record to, overwritten if it exists
+     * @param sensor : the sensor whose blocks will be recorded
+     * @throws IOException if the file can not be created or mapped
+     */
+    public SessionRecorder(File file, EMGSensor sensor) throws IOException {
+        this(file, sensor.getOutputSampleRate(), sensor.getInputSampleRate(),
+                sensor.getChannelCount(), sensor.getBlockLength());
+    }
+    
+    /**
+     * Creates a recorder.
+     * @param file : the file to record to, overwritten if it exists
+     * @param sampleRate : sample rate of the recorded blocks in Hz
+     * @param sourceRate : sample rate of the blocks' frame positions in Hz
+     * @param channels : number of channels in each block
+     * @param blockLength : samples per channel in each block
+     * @throws IOException if the file can not be created or mapped
+     */
+    public SessionRecorder(File file, float sampleRate, float sourceRate,
+            int channels, int blockLength) throws IOException {
+        this.channels = channels;
+        this.blockLength = blockLength;
+        recordSize = RECORD_HEADER_SIZE + 2 * channels * blockLength;
+        recordsPerChunk = Math.max(1, CHUNK_SIZE / recordSize);
+        
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        channel = this.file.getChannel();
+        
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putShort(HEADER_SIZE);
+        header.putFloat(sampleRate);
+        header.putInt(channels);
+        header.putFloat(SCALE);
+        header.putInt(blockLength);
+        countOffset = header.position();
+        header.putLong(0);
+        header.putFloat(sourceRate);
+        
+        chunkStart = HEADER_SIZE;
+        chunk = mapChunk(chunkStart);
+        
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SessionRecorder-flush");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    private MappedByteBuffer mapChunk(long start) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, start,
+                (long)recordsPerChunk * recordSize);
+    }
+    
+    @Override
+    public void onBlock(SampleBlock block) {
+        if (failed) {
+            return;
+        }
+        if (block.getLength() != blockLength
+                || block.getChannelCount() != channels) {
+            throw new IllegalArgumentException("Block shape does not match "
+                    + "the recording");
+        }
+        
+        try {
+            if (!chunk.hasRemaining()) {
+                retired.add(chunk);
+                chunkStart += (long)recordsPerChunk * recordSize;
+                chunk = mapChunk(chunkStart);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed = true;
+            return;
+        }
+        
+        MappedByteBuffer out = chunk;
+        out.putLong(block.getFramePosition());
+        out.putLong(block.getCaptureNanos());
+        
+        float[] data = block.getData();
+        for (int c = 0; c < channels; c++) {
+            int off = block.getOffset(c);
+            for (int i = 0; i < blockLength; i++) {
+                float x = data[off + i] * SCALE;
+                if (x > 32767) {
+                    x = 32767;
+                } else if (x < -32768) {
+                    x = -32768;
+                }
+                out.putShort((short)Math.round(x));
+            }
+        }
+        
+        header.putLong(countOffset, ++blockCount);
+    }
+    
+    /**
+     * Forces everything recorded so far out to the file. Called periodically
+     * on the flush thread.
+     */
+    private void flush() {
+        MappedByteBuffer b;
+        while ((b = retired.poll()) != null) {
+            b.force();
+        }
+        chunk.force();
+        header.force();
+    }
+    
+    /**
+     * Gets the number of blocks recorded so far.
+     * @return the block count
+     */
+    public long getBlockCount() {
+        return blockCount;
+    }
+    
+    /**
+     * Stops recording, flushes the file and trims it to the recorded length.
+     * Remove the recorder from the sensor (or kill the sensor) first.
+     * @throws IOException if the file can not be written
+     */
+    public void close() throws IOException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        flush();
+        failed = true;
+        file.setLength(HEADER_SIZE + blockCount * recordSize);
+        file.close();
+    }
+}
@@ -0,0 +1,183 @@
+package rascal.libemg.io;
+
+import java.util.Random;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+
+/**
+ * Generates a deterministic synthetic EMG signal: Gaussian noise whose
+ * amplitude follows a periodic burst envelope, mimicking repeated
+ * contractions on top of a resting noise floor. Two sources with the same
+ * seed and settings produce exactly the same samples, so processing stages
+ * can be checked and benchmarked without EMG hardware.
+ */
+public class SyntheticSampleSource implements SampleSource {
+    
+    /** Default time between the start of two contractions, in seconds */
+    public static final float DEFAULT_BURST_PERIOD = 4f;
+    /** Default length of a contraction, in seconds */
+    public static final float DEFAULT_BURST_DURATION = 2f;
+    /** Default length of the ramp up/down at each end of a burst */
+    public static final float DEFAULT_BURST_RAMP = 0.25f;
+    /** Default RMS level (full scale = 1) while at rest */
+    public static final float DEFAULT_REST_LEVEL = 0.01f;
+    /** Default RMS level (full scale = 1) at the peak of a contraction */
+    public static final float DEFAULT_BURST_LEVEL = 0.3f;
+    
+    private final AudioFormat format;
+    private final Random random;
+    private final RealTimePacer pacer;
+    private long framesRead = 0;
+    
+    private long periodFrames;
+    private long durationFrames;
+    private long rampFrames;
+    private float restLevel;
+    private float burstLevel;
+    
+    /**
+     * Creates a mono 16-bit big-endian generator with the default burst
+     * envelope.
+     * @param sampleRate : sample rate of the generated signal in Hz
+     * @param seed : seed for the noise generator
+     * @param realTime : true to deliver samples at the sample rate, false to
+     * deliver them as fast as they are read (without losing any, see
+     * isRealTime())
+     */
+    public SyntheticSampleSource(float sampleRate, long seed, boolean realTime) {
+        format = new AudioFormat(sampleRate, 16, 1, true, true);
+        random = new Random(seed);
+        pacer = realTime ? new RealTimePacer(sampleRate) : null;
+        
+        setBurstEnvelope(DEFAULT_BURST_PERIOD, DEFAULT_BURST_DURATION,
+                DEFAULT_BURST_RAMP, DEFAULT_REST_LEVEL, DEFAULT_BURST_LEVEL);
+    }
+    
+    /**
+     * Configures the burst envelope. Bursts start at the beginning of every
+     * period, ramp up with a raised cosine, hold, then ramp down again.
+     * @param period : time between the start of two bursts in seconds
+     * @param duration : length of each burst including the ramps in seconds
+     * @param ramp : length of the ramp at each end of a burst in seconds
+     * @param restLevel : RMS amplitude between bursts (full scale = 1)
+     * @param burstLevel : RMS amplitude at the peak of a burst
+     */
+    public void setBurstEnvelope(float period, float duration, float ramp,
+            float restLevel, float burstLevel) {
+        float rate = format.getSampleRate();
+        
+        periodFrames = Math.max(1, (long)(period * rate));
+        durationFrames = Math.min(periodFrames, (long)(duration * rate));
+        rampFrames = Math.min(durationFrames / 2, (long)(ramp * rate));
+        this.restLevel = restLevel;
+        this.burstLevel = burstLevel;
+    }
+    
+    /**
+     * Gets the envelope (RMS amplitude) at a given frame.
+     * @param frame : index of the frame since the source was created
+     * @return the amplitude of the noise at that frame
+     */
+    public float envelope(long frame) {
+        long t = frame % periodFrames;
+        if (t >= durationFrames) {
+            return restLevel;
+        }
+        
+        double shape = 1;
+        if (t < rampFrames) {
+            shape = 0.5 - 0.5*Math.cos(Math.PI * t / rampFrames);
+        } else if (t >= durationFrames - rampFrames) {
+            shape = 0.5 - 0.5*Math.cos(Math.PI * (durationFrames - t) / rampFrames);
+        }
+        
+        return restLevel + (float)(shape * (burstLevel - restLevel));
+    }
+    
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+    
+    @Override
+    public void open() {
+    }
+    
+    @Override
+    public void start() {
+        if (pacer != null) {
+            pacer.start(framesRead);
+        }
+    }
+    
+    @Override
+    public void stop() {
+        if (pacer != null) {
+            pacer.stop();
+        }
+    }
+    
+    @Override
+    public void close() {
+        stop();
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int frames = len / 2;
+        if (pacer != null && !pacer.awaitFrame(framesRead + frames)) {
+            return 0;
+        }
+        
+        for (int i = 0; i < frames; i++) {
+            double v = envelope(framesRead + i) * random.nextGaussian();
+            int s = (int)Math.round(v * 32767);
+            if (s > 32767) {
+                s = 32767;
+            } else if (s < -32768) {
+                s = -32768;
+            }
+            
+            b[off + 2*i] = (byte)(s >> 8);
+            b[off + 2*i + 1] = (byte)s;
+        }
+        framesRead += frames;
+        
+        return frames * 2;
+    }
+    
+    @Override
+    public long getLongFramePosition() {
+        return framesRead;
+    }
+    
+    @Override
+    public int available() {
+        long due = pacer != null ? pacer.dueFrame() : -1;
+        if (due <= framesRead) {
+            return 0;
+        }
+        
+        return (int)Math.min(Integer.MAX_VALUE,
+                (due - framesRead) * format.getFrameSize());
+    }
+    
+    @Override
+    public void flush() {
+        long due = pacer != null ? pacer.dueFrame() : -1;
+        if (due > framesRead) {
+            framesRead = due;
+        }
+    }
+    
+    @Override
+    public boolean isRealTime() {
+        return pacer != null;
+    }
+    
+    @Override
+    public int getBufferSize() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+}
@@ -0,0 +1,387 @@
+package rascal.libemg.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of trial events (start, end, restart, controller state
+ * transitions and positions along the trajectory) for post-session
+ * analysis. Every event is one fixed-size record with its own CRC32, written
+ * with a single write, so the journal can be scanned or memory-mapped as an
+ * array of records. If the process dies mid-write, the torn record at the
+ * tail fails its checksum and is cut off the next time the journal is
+ * opened; everything before it is kept. Trial ends are forced to disk.
+ * <p>
+ * Timestamps are System.nanoTime(), which is monotonic; the header stores
+ * the wall clock time and nanoTime() at creation to convert them. nanoTime()
+ * has an arbitrary origin in each JVM, so whenever an existing journal is
+ * reopened a SYNC record with both clocks is appended first, and the records
+ * after it are converted with it instead of the header.
+ * <p>
+ * File layout (big-endian):
+ * <pre>
+ * header, HEADER_SIZE bytes:
+ *   int   MAGIC
+ *   short VERSION
+ *   short RECORD_SIZE
+ *   long  creation time (ms since the epoch)
+ *   long  System.nanoTime() at creation
+ *   long  session seed
+ * then RECORD_SIZE bytes per event:
+ *   byte  type (START, END, RESTART, STATE, POSITION or SYNC)
+ *   byte  value, unsigned (END: 1 if successful; STATE: state ordinal,
+ *         at most 255)
+ *   short target index
+ *   int   trial number
+ *   long  System.nanoTime()
+ *   float q1, q2 (END: final position; POSITION: position)
+ *   int   restart count of the trial
+ *   (SYNC: long wall clock time in ms since the epoch instead of q1 and q2,
+ *   then an unused int)
+ *   int   CRC32 of the preceding 28 bytes
+ * </pre>
+ */
+public class TrialJournal {
+
+    public static final int MAGIC = 0x454d474a; // "EMGJ"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final short RECORD_SIZE = 32;
+
+    public static final byte START = 1;
+    public static final byte END = 2;
+    public static final byte RESTART = 3;
+    public static final byte STATE = 4;
+    public static final byte POSITION = 5;
+    public static final byte SYNC = 6;
+
+    private static final int CRC_OFFSET = 28;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final long seed;
+    private long count;
+
+    /**
+     * Opens a journal for appending, creating it if it does not exist. An
+     * existing journal is checked record by record and truncated after the
+     * last intact one.
+     * @param path : journal file
+     * @param seed : session seed, stored in the header of a new journal and
+     * checked against the header of an existing one
+     * @throws IOException if the file cannot be opened, is not a journal or
+     * belongs to a session with a different seed
+     */
+    public TrialJournal(File path, long seed) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putShort(VERSION);
+                header.putShort(RECORD_SIZE);
+                header.putLong(System.currentTimeMillis());
+                header.putLong(System.nanoTime());
+                header.putLong(seed);
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+                this.seed = seed;
+                count = 0;
+            } else {
+                ByteBuffer header = readHeader(channel);
+                if (header.getLong(24) != seed) {
+                    throw new IOException("Journal " + path
+                            + " belongs to the session with seed "
+                            + header.getLong(24) + ", not " + seed);
+                }
+                this.seed = seed;
+                count = countValid(channel);
+                long end = HEADER_SIZE + count * RECORD_SIZE;
+                if (channel.size() > end) {
+                    // drop the torn tail left by a crash
+                    channel.truncate(end);
+                    channel.force(true);
+                }
+                // this JVM's nanoTime() is unrelated to the header's
+                appendSync();
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()
+                && channel.read(header, header.position()) >= 0) {
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a trial journal");
+        }
+        if (header.getShort(4) != VERSION
+                || header.getShort(6) != RECORD_SIZE) {
+            throw new IOException("Unsupported trial journal version "
+                    + header.getShort(4));
+        }
+        return header;
+    }
+
+    /**
+     * Counts the intact records from the start of the journal.
+     */
+    private static long countValid(FileChannel channel) throws IOException {
+        long full = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+        if (full <= 0) {
+            return 0;
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                HEADER_SIZE, full * RECORD_SIZE);
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[RECORD_SIZE];
+        for (long i = 0; i < full; i++) {
+            map.get(bytes);
+            if (!checksumOk(crc, bytes)) {
+                return i;
+            }
+        }
+        return full;
+    }
+
+    private static boolean checksumOk(CRC32 crc, byte[] bytes) {
+        crc.reset();
+        crc.update(bytes, 0, CRC_OFFSET);
+        return ByteBuffer.wrap(bytes).getInt(CRC_OFFSET) == (int)crc.getValue();
+    }
+
+    /**
+     * Appends an event to the journal.
+     * @param type : event type, e.g. START
+     * @param value : type specific value from 0 to 255, see the class
+     * description
+     * @param trial : trial number
+     * @param target : target index
+     * @param restarts : number of restarts of the trial so far
+     * @param q1 : first coordinate of the position, or 0
+     * @param q2 : second coordinate of the position, or 0
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void append(byte type, int value, int trial,
+            int target, int restarts, float q1, float q2) throws IOException {
+        if (value < 0 || value > 0xff) {
+            throw new IllegalArgumentException("Value " + value
+                    + " does not fit in a journal record");
+        }
+        begin(type, value, trial, target, System.nanoTime());
+        record.putFloat(q1);
+        record.putFloat(q2);
+        record.putInt(restarts);
+        write();
+
+        if (type == END) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Appends a SYNC record with the current wall clock time and nanoTime().
+     */
+    private void appendSync() throws IOException {
+        long nanos = System.nanoTime();
+        long millis = System.currentTimeMillis();
+        begin(SYNC, 0, 0, 0, nanos);
+        record.putLong(millis);
+        record.putInt(0);
+        write();
+        channel.force(false);
+    }
+
+    private void begin(byte type, int value, int trial, int target,
+            long nanos) {
+        record.clear();
+        record.put(type);
+        record.put((byte)value);
+        record.putShort((short)target);
+        record.putInt(trial);
+        record.putLong(nanos);
+    }
+
+    /**
+     * Checksums the record filled in by begin() and the caller and writes it
+     * after the last one.
+     */
+    private void write() throws IOException {
+        crc.reset();
+        crc.update(record.array(), 0, CRC_OFFSET);
+        record.putInt((int)crc.getValue());
+        record.flip();
+
+        long pos = HEADER_SIZE + count * RECORD_SIZE;
+        while (record.hasRemaining()) {
+            pos += channel.write(record, pos);
+        }
+        count++;
+    }
+
+    /**
+     * Forces all records appended so far to disk.
+     * @throws IOException if the file cannot be synced
+     */
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Syncs and closes the journal.
+     * @throws IOException if the file cannot be synced or closed
+     */
+    public synchronized void close() throws IOException {
+        try {
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+    }
+
+    public synchronized long getRecordCount() {
+        return count;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Memory-mapped read-only view of a journal for analysis. Records are
+     * accessed by index without copying; only the intact records at the time
+     * of opening are visible. SYNC records are returned like the others.
+     */
+    public static class Reader implements AutoCloseable {
+
+        private final RandomAccessFile file;
+        private final MappedByteBuffer map;
+        private final long createdMillis, createdNanos, seed;
+        private final int count;
+        /** Indices of the SYNC records, in order */
+        private final int[] syncs;
+
+        /**
+         * Opens a journal for reading.
+         * @param path : journal file
+         * @throws IOException if the file cannot be read or is not a journal
+         */
+        public Reader(File path) throws IOException {
+            file = new RandomAccessFile(path, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                ByteBuffer header = readHeader(channel);
+                createdMillis = header.getLong(8);
+                createdNanos = header.getLong(16);
+                seed = header.getLong(24);
+                long valid = countValid(channel);
+                if (valid > Integer.MAX_VALUE / RECORD_SIZE) {
+                    throw new IOException("Journal too large to map");
+                }
+                count = (int)valid;
+                map = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE, (long)count * RECORD_SIZE);
+
+                int n = 0;
+                int[] found = new int[count];
+                for (int i = 0; i < count; i++) {
+                    if (getType(i) == SYNC) {
+                        found[n++] = i;
+                    }
+                }
+                syncs = Arrays.copyOf(found, n);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        public int getRecordCount() {
+            return count;
+        }
+
+        public byte getType(int i) {
+            return map.get(i * RECORD_SIZE);
+        }
+
+        public int getValue(int i) {
+            return map.get(i * RECORD_SIZE + 1) & 0xff;
+        }
+
+        public int getTarget(int i) {
+            return map.getShort(i * RECORD_SIZE + 2);
+        }
+
+        public int getTrial(int i) {
+            return map.getInt(i * RECORD_SIZE + 4);
+        }
+
+        public long getNanos(int i) {
+            return map.getLong(i * RECORD_SIZE + 8);
+        }
+
+        /**
+         * @param i : record index
+         * @return The record's time in ms since the epoch, from the clocks
+         * of the last SYNC record up to it, or of the header if there is
+         * none.
+         */
+        public long getTimeMillis(int i) {
+            int k = Arrays.binarySearch(syncs, i);
+            if (k < 0) {
+                k = -k - 2; // the last one before i
+            }
+            if (k < 0) {
+                return createdMillis + (getNanos(i) - createdNanos) / 1000000;
+            }
+            int sync = syncs[k];
+            return getSyncMillis(sync)
+                    + (getNanos(i) - getNanos(sync)) / 1000000;
+        }
+
+        /**
+         * @param i : index of a SYNC record
+         * @return The wall clock time stored in the record.
+         */
+        public long getSyncMillis(int i) {
+            return map.getLong(i * RECORD_SIZE + 16);
+        }
+
+        public float getQ1(int i) {
+            return map.getFloat(i * RECORD_SIZE + 16);
+        }
+
+        public float getQ2(int i) {
+            return map.getFloat(i * RECORD_SIZE + 20);
+        }
+
+        public int getRestarts(int i) {
+            return map.getInt(i * RECORD_SIZE + 24);
+        }
+
+        public long getSeed() {
+            return seed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -4,60 +4,50 @@ import rascal.libemg.Position;
 
 /**
  * Implements dual band pass filters with pass bands of 80-100 Hz and
- * 130-150 Hz for a 4 kHz input signal. Output is a Position with each element
- * set to the power of the input signal after being filtered by each of the
- * bandpass filters. The filters were designed using the butter() function in
- * MATLAB/Octave, with the filter order N = 2 and a sample rate of 4 kHz. The
- * call would look something like:
+ * 130-150 Hz. Output is a Position with each element set to the power of the
+ * input signal after being filtered by each of the bandpass filters. The
+ * filters are 2nd order Butterworth band passes designed for the actual input
+ * sample rate (4 kHz by default), equivalent to MATLAB/Octave's:
  * <p>
  * {@code
- * [b1, a1] = butter(2, [80/(4000/2), 100/(4000/2)]);}
+ * [b1, a1] = butter(2, [80/(fs/2), 100/(fs/2)]);}
+ * <p>
+ * Each fourth order filter is run as two second-order sections in transposed
+ * direct form II, which keeps the poles near the unit circle well conditioned
+ * and avoids shifting history arrays.
  */
 public class BandFilter {
 
-    private double[] xv1, xv2, yv1, yv2;
-    private Position output;
+    public static final float DEFAULT_SAMPLE_RATE = 4000;
     
-    // passband_x: 80-100 Hz
-    private static final double[] b1 = {
-            0.000241359049040274,
-            0.0,
-           -0.000482718098080548,
-            0.0,
-            0.000241359049040274
-    };
-    private static final double[] a1 = {
-            1.0,
-           -3.916599218986691,
-            5.790978455131096,
-           -3.830543025785111,
-            0.956543676511202
-    };
+    private static final int ORDER = 2;
+    // passband_x
+    static final double LOW_1 = 80, HIGH_1 = 100;
+    // passband_y
+    static final double LOW_2 = 130, HIGH_2 = 150;
 
-    // passband_y: 130-150 Hz
-    private static final double[] b2 = {
-            0.000241359049035160,
-            0.0,
-           -0.000482718098070319,
-            0,
-            0.000241359049035160
-    };
-    private static final double[] a2 = {
-            1.0,
-           -3.860791404137975,
-            5.682455564664910,
-           -3.775961429864676,
-            0.956543676511206
-    };
+    // transposed direct form II state: z for the first section of each band,
+    // w for the second, numbered by band then state
+    private double z11, z12, z21, z22;
+    private double w11, w12, w21, w22;
+    private final double[][] sos1, sos2;
+    private Position output;
 
     /**
-     * Initializes input and output arrays for the two band filters.
+     * Initializes the band filters for a 4 kHz input signal.
      */
     public BandFilter() {
-        xv1 = new double[b1.length];
-        xv2 = new double[b2.length];
-        yv1 = new double[a1.length];
-        yv2 = new double[a2.length];
+        this(DEFAULT_SAMPLE_RATE);
+    }
+    
+    /**
+     * Designs the band filters for the given input sample rate, e.g.
+     * EMGSensor.getOutputSampleRate().
+     * @param sampleRate : input sample rate in Hz, above 300 Hz
+     */
+    public BandFilter(float sampleRate) {
+        sos1 = ButterworthDesigner.bandpass(ORDER, LOW_1, HIGH_1, sampleRate);
+        sos2 = ButterworthDesigner.bandpass(ORDER, LOW_2, HIGH_2, sampleRate);
         
         output = new Position();
     }
@@ -70,44 +60,49 @@ public class BandFilter {
      * each of the filters.
      */
     public Position filter(float[] data) {
-        output.setQ1(0);
-        output.setQ2(0);
+        final double[] s11 = sos1[0], s12 = sos1[1];
+        final double[] s21 = sos2[0], s22 = sos2[1];
+        final double b110 = s11[0], b111 = s11[1], b112 = s11[2];
+        final double a111 = s11[3], a112 = s11[4];
+        final double b120 = s12[0], b121 = s12[1], b122 = s12[2];
+        final double a121 = s12[3], a122 = s12[4];
+        final double b210 = s21[0], b211 = s21[1], b212 = s21[2];
+        final double a211 = s21[3], a212 = s21[4];
+        final double b220 = s22[0], b221 = s22[1], b222 = s22[2];
+        final double a221 = s22[3], a222 = s22[4];
+        
+        double z11 = this.z11, z12 = this.z12, z21 = this.z21, z22 = this.z22;
+        double w11 = this.w11, w12 = this.w12, w21 = this.w21, w22 = this.w22;
+        double p1 = 0, p2 = 0;
 
-        for(int n = 0; n < data.length; n++){
+        for (int n = 0; n < data.length; n++) {
+            double x = data[n];
             
-            // shift previous data
-            for (int i = 1; i < xv1.length; i++){
-                xv1[i-1] = xv1[i];
-                xv2[i-1] = xv2[i];
-            }
-            for (int i = 1; i < yv1.length; i++) {
-                yv1[i-1] = yv1[i];
-                yv2[i-1] = yv2[i];
-            }
+            // band 1
+            double u = b110*x + z11;
+            z11 = b111*x - a111*u + z12;
+            z12 = b112*x - a112*u;
+            double y1 = b120*u + w11;
+            w11 = b121*u - a121*y1 + w12;
+            w12 = b122*u - a122*y1;
             
-            // set new input data
-            xv1[xv1.length-1] = data[n];
-            xv2[xv2.length-1] = data[n];
+            // band 2
+            double v = b210*x + z21;
+            z21 = b211*x - a211*v + z22;
+            z22 = b212*x - a212*v;
+            double y2 = b220*v + w21;
+            w21 = b221*v - a221*y2 + w22;
+            w22 = b222*v - a222*y2;
             
-            // run the filter
-            yv1[yv1.length-1] = 0;
-            yv2[yv2.length-1] = 0;
-            for (int i = 0; i < xv1.length; i++) {
-                yv1[yv1.length-1] += b1[i]*xv1[xv1.length-1-i];
-                yv2[yv2.length-1] += b2[i]*xv2[xv2.length-1-i];
-            }
-            for (int i = 1; i < yv1.length; i++) {
-                yv1[yv1.length-1] -= a1[i]*yv1[yv1.length-1-i];
-                yv2[yv2.length-1] -= a2[i]*yv2[yv2.length-1-i];
-            }
-            yv1[yv1.length-1] /= a1[0];
-            yv2[yv2.length-1] /= a2[0];
-            
-            output.translate(
-                    (float)(yv1[yv1.length-1] * yv1[yv1.length-1]),
-                    (float)(yv2[yv2.length-1] * yv2[yv2.length-1]));
+            p1 += y1*y1;
+            p2 += y2*y2;
         }
         
+        this.z11 = z11; this.z12 = z12; this.z21 = z21; this.z22 = z22;
+        this.w11 = w11; this.w12 = w12; this.w21 = w21; this.w22 = w22;
+        
+        output.setQ1((float)p1);
+        output.setQ2((float)p2);
         return output;
     }
 }
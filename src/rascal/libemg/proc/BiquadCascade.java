@@ -0,0 +1,96 @@
+package rascal.libemg.proc;
+
+import java.util.Arrays;
+
+/**
+ * A cascade of second-order IIR sections (biquads), each run in transposed
+ * direct form II. Only two state values are kept per section and nothing is
+ * shifted between samples. See SecondOrderSections for building the sections
+ * from b/a coefficients.
+ */
+public class BiquadCascade {
+    
+    private final int sections;
+    /** {b0, b1, b2, a1, a2} of section s at coeffs[5*s] */
+    private final double[] coeffs;
+    /** Two state values of section s at state[2*s] */
+    private final double[] state;
+    
+    /**
+     * Creates a cascade from second-order sections.
+     * @param sos : one {b0, b1, b2, a1, a2} row per section (a0 = 1)
+     */
+    public BiquadCascade(double[][] sos) {
+        sections = sos.length;
+        coeffs = new double[5 * sections];
+        state = new double[2 * sections];
+        
+        for (int s = 0; s < sections; s++) {
+            System.arraycopy(sos[s], 0, coeffs, 5*s, 5);
+        }
+    }
+    
+    /**
+     * Creates a cascade equivalent to a transfer function.
+     * @param b : numerator coefficients
+     * @param a : denominator coefficients
+     */
+    public BiquadCascade(double[] b, double[] a) {
+        this(SecondOrderSections.fromTransferFunction(b, a));
+    }
+    
+    /**
+     * Filters a single sample.
+     * @param x : input sample
+     * @return the filtered sample
+     */
+    public double filter(double x) {
+        for (int s = 0, c = 0; s < sections; s++, c += 5) {
+            double y = coeffs[c]*x + state[2*s];
+            state[2*s] = coeffs[c+1]*x - coeffs[c+3]*y + state[2*s+1];
+            state[2*s+1] = coeffs[c+2]*x - coeffs[c+4]*y;
+            x = y;
+        }
+        
+        return x;
+    }
+    
+    /**
+     * Filters a block of samples.
+     * @param in : input samples
+     * @param off : index of the first input sample
+     * @param len : number of samples
+     * @param out : destination for the filtered samples (may be in)
+     * @param outOff : index in out to start writing at
+     */
+    public void filter(float[] in, int off, int len, float[] out, int outOff) {
+        for (int i = 0; i < len; i++) {
+            out[outOff + i] = (float)filter(in[off + i]);
+        }
+    }
+    
+    /**
+     * Filters a block of samples, keeping only the power of the output.
+     * @param in : input samples
+     * @param off : index of the first input sample
+     * @param len : number of samples
+     * @return the sum of squares of the filtered samples
+     */
+    public double power(float[] in, int off, int len) {
+        double power = 0;
+        
+        for (int i = 0; i < len; i++) {
+            double y = filter(in[off + i]);
+            power += y*y;
+        }
+        
+        return power;
+    }
+    
+    /**
+     * Clears the filter state.
+     */
+    public void reset() {
+        Arrays.fill(state, 0);
+    }
+}
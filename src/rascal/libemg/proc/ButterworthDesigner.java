@@ -0,0 +1,285 @@
+package rascal.libemg.proc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Designs digital Butterworth filters at runtime, equivalent to MATLAB/Octave's
+ * butter(), so filters can follow the live sample rate instead of relying on
+ * coefficients copied in for one rate. The analog prototype is transformed to
+ * the requested band, prewarped, and mapped with the bilinear transform
+ * straight to second-order sections ({b0, b1, b2, a1, a2} rows, a0 = 1) so
+ * the poles are never expanded into an ill-conditioned polynomial.
+ * <p>
+ * Designs are memoized by (type, order, band edges, sample rate). Callers get
+ * their own copy of the sections, so they are free to modify them.
+ */
+public class ButterworthDesigner {
+
+    public enum Type {
+        LOWPASS, HIGHPASS, BANDPASS
+    }
+
+    private static final ConcurrentHashMap<Key, double[][]> cache =
+            new ConcurrentHashMap<Key, double[][]>();
+
+    /**
+     * Designs a lowpass filter.
+     * @param order : filter order
+     * @param cutoff : -3 dB frequency in Hz
+     * @param sampleRate : sample rate in Hz
+     * @return second-order sections, one {b0, b1, b2, a1, a2} row each
+     */
+    public static double[][] lowpass(int order, double cutoff,
+            double sampleRate) {
+        return design(Type.LOWPASS, order, cutoff, 0, sampleRate);
+    }
+
+    /**
+     * Designs a highpass filter.
+     * @param order : filter order
+     * @param cutoff : -3 dB frequency in Hz
+     * @param sampleRate : sample rate in Hz
+     * @return second-order sections, one {b0, b1, b2, a1, a2} row each
+     */
+    public static double[][] highpass(int order, double cutoff,
+            double sampleRate) {
+        return design(Type.HIGHPASS, order, cutoff, 0, sampleRate);
+    }
+
+    /**
+     * Designs a bandpass filter. As with butter(), the resulting filter has
+     * twice the given order.
+     * @param order : prototype filter order
+     * @param low : lower -3 dB frequency in Hz
+     * @param high : upper -3 dB frequency in Hz
+     * @param sampleRate : sample rate in Hz
+     * @return second-order sections, one {b0, b1, b2, a1, a2} row each
+     */
+    public static double[][] bandpass(int order, double low, double high,
+            double sampleRate) {
+        return design(Type.BANDPASS, order, low, high, sampleRate);
+    }
+
+    /**
+     * Designs a filter, or returns a copy of a previous identical design.
+     * @param type : response type
+     * @param order : prototype filter order
+     * @param low : cutoff frequency, or lower band edge for a bandpass, in Hz
+     * @param high : upper band edge for a bandpass in Hz (ignored otherwise)
+     * @param sampleRate : sample rate in Hz
+     * @return second-order sections, one {b0, b1, b2, a1, a2} row each
+     */
+    public static double[][] design(Type type, int order, double low,
+            double high, double sampleRate) {
+        if (type != Type.BANDPASS) {
+            high = 0;
+        }
+        validate(type, order, low, high, sampleRate);
+
+        Key key = new Key(type, order, low, high, sampleRate);
+        double[][] sos = cache.get(key);
+        if (sos == null) {
+            sos = compute(type, order, low, high, sampleRate);
+            double[][] prev = cache.putIfAbsent(key, sos);
+            if (prev != null) {
+                sos = prev;
+            }
+        }
+
+        return copy(sos);
+    }
+
+    private static void validate(Type type, int order, double low,
+            double high, double sampleRate) {
+        if (order < 1) {
+            throw new IllegalArgumentException("Order must be at least 1");
+        }
+        double nyquist = sampleRate / 2;
+        if (!(low > 0 && low < nyquist)) {
+            throw new IllegalArgumentException(
+                    "Cutoff must be between 0 and " + nyquist + " Hz");
+        }
+        if (type == Type.BANDPASS && !(high > low && high < nyquist)) {
+            throw new IllegalArgumentException(
+                    "Band must satisfy 0 < low < high < " + nyquist + " Hz");
+        }
+    }
+
+    private static double[][] copy(double[][] sos) {
+        double[][] out = new double[sos.length][];
+        for (int i = 0; i < sos.length; i++) {
+            out[i] = sos[i].clone();
+        }
+        return out;
+    }
+
+    private static double[][] compute(Type type, int order, double low,
+            double high, double sampleRate) {
+        double fs2 = 2 * sampleRate;
+        // prewarp so the digital -3 dB points land on the requested edges
+        double w1 = fs2 * Math.tan(Math.PI * low / sampleRate);
+        double w2 = fs2 * Math.tan(Math.PI * high / sampleRate);
+
+        int sections = type == Type.BANDPASS ? order : (order + 1) / 2;
+        double[][] sos = new double[sections][];
+        int n = 0;
+
+        // prototype poles in the upper half plane (plus the real pole for odd
+        // orders); each one stands for itself and its conjugate
+        for (int k = 0; k < (order + 1) / 2; k++) {
+            double theta = Math.PI * (2*k + order + 1) / (2*order);
+            double pr = Math.cos(theta);
+            double pi = Math.sin(theta);
+            boolean real = 2*k + 1 == order;
+            if (real) {
+                pr = -1;
+                pi = 0;
+            }
+
+            switch (type) {
+            case LOWPASS:
+                if (real) {
+                    sos[n++] = firstOrder(bilinear(w1*pr, 0, fs2), 1);
+                } else {
+                    sos[n++] = conjugate(
+                            bilinear(w1*pr, w1*pi, fs2), 2, 1);
+                }
+                break;
+            case HIGHPASS:
+                // s -> w / s, and 1 / p = conj(p) on the unit circle
+                if (real) {
+                    sos[n++] = firstOrder(bilinear(-w1, 0, fs2), -1);
+                } else {
+                    sos[n++] = conjugate(
+                            bilinear(w1*pr, -w1*pi, fs2), -2, 1);
+                }
+                break;
+            case BANDPASS:
+                // s -> (s^2 + w0^2) / (bw s): every prototype pole p becomes
+                // p bw/2 +- sqrt((p bw/2)^2 - w0^2)
+                double bw = w2 - w1;
+                double w0sq = w1 * w2;
+                double hr = pr * bw / 2;
+                double hi = pi * bw / 2;
+                double[] root = sqrt(hr*hr - hi*hi - w0sq, 2*hr*hi);
+                double[] zp = bilinear(hr + root[0], hi + root[1], fs2);
+                double[] zm = bilinear(hr - root[0], hi - root[1], fs2);
+                if (real) {
+                    // zp and zm are a conjugate pair or two real poles
+                    sos[n++] = new double[] {1, 0, -1,
+                            -(zp[0] + zm[0]),
+                            zp[0]*zm[0] - zp[1]*zm[1]};
+                } else {
+                    sos[n++] = conjugate(zp, 0, -1);
+                    sos[n++] = conjugate(zm, 0, -1);
+                }
+                break;
+            }
+        }
+
+        // same ordering as SecondOrderSections: poles nearest the unit
+        // circle last
+        Arrays.sort(sos, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] x, double[] y) {
+                return Double.compare(Math.abs(x[4]), Math.abs(y[4]));
+            }
+        });
+
+        // unity gain at DC, Nyquist or the digital center frequency
+        double w;
+        if (type == Type.LOWPASS) {
+            w = 0;
+        } else if (type == Type.HIGHPASS) {
+            w = Math.PI;
+        } else {
+            w = 2 * Math.atan(Math.sqrt(w1 * w2) / fs2);
+        }
+        double gain = 1 / magnitude(sos, w);
+        for (int i = 0; i < 3; i++) {
+            sos[0][i] *= gain;
+        }
+
+        return sos;
+    }
+
+    /** Maps an s-plane point to the z-plane: z = (2fs + s) / (2fs - s) */
+    private static double[] bilinear(double re, double im, double fs2) {
+        double nr = fs2 + re;
+        double dr = fs2 - re;
+        double d = dr*dr + im*im;
+        return new double[] {(nr*dr - im*im) / d, (im*dr + nr*im) / d};
+    }
+
+    private static double[] sqrt(double re, double im) {
+        double m = Math.hypot(re, im);
+        double r = Math.sqrt((m + re) / 2);
+        double i = Math.sqrt((m - re) / 2);
+        return new double[] {r, im < 0 ? -i : i};
+    }
+
+    /** Section with poles z, conj(z) and numerator 1 + c1 z^-1 + c2 z^-2 */
+    private static double[] conjugate(double[] z, double c1, double c2) {
+        return new double[] {1, c1, c2,
+                -2*z[0], z[0]*z[0] + z[1]*z[1]};
+    }
+
+    /** Section with a single real pole and numerator 1 + c1 z^-1 */
+    private static double[] firstOrder(double[] z, double c1) {
+        return new double[] {1, c1, 0, -z[0], 0};
+    }
+
+    /** |H(e^jw)| of a cascade */
+    private static double magnitude(double[][] sos, double w) {
+        double c1 = Math.cos(w), s1 = -Math.sin(w);
+        double c2 = Math.cos(2*w), s2 = -Math.sin(2*w);
+        double mag = 1;
+        for (double[] s : sos) {
+            double nr = s[0] + s[1]*c1 + s[2]*c2;
+            double ni = s[1]*s1 + s[2]*s2;
+            double dr = 1 + s[3]*c1 + s[4]*c2;
+            double di = s[3]*s1 + s[4]*s2;
+            mag *= Math.sqrt((nr*nr + ni*ni) / (dr*dr + di*di));
+        }
+        return mag;
+    }
+
+    private static final class Key {
+        private final Type type;
+        private final int order;
+        private final double low, high, sampleRate;
+
+        Key(Type type, int order, double low, double high,
+                double sampleRate) {
+            this.type = type;
+            this.order = order;
+            this.low = low;
+            this.high = high;
+            this.sampleRate = sampleRate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key)o;
+            return type == k.type && order == k.order
+                    && Double.compare(low, k.low) == 0
+                    && Double.compare(high, k.high) == 0
+                    && Double.compare(sampleRate, k.sampleRate) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = type.hashCode();
+            h = 31*h + order;
+            h = 31*h + Double.valueOf(low).hashCode();
+            h = 31*h + Double.valueOf(high).hashCode();
+            h = 31*h + Double.valueOf(sampleRate).hashCode();
+            return h;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package rascal.libemg.proc;
+
+import java.util.Arrays;
+
+import rascal.libemg.SampleBlock;
+
+/**
+ * Computes the standard time-domain EMG features of a window of samples in a
+ * single pass: mean absolute value (MAV), waveform length (WL), zero
+ * crossings (ZC), slope sign changes (SSC), Willison amplitude (WAMP) and an
+ * amplitude histogram. The features are written to a feature vector which is
+ * reused by every call, indexed by the constants below (the histogram bins
+ * follow HIST).
+ * <p>
+ * ZC, SSC and WAMP take thresholds to keep noise from being counted. They
+ * default to 0 and should be set relative to the noise floor of the input;
+ * with a WAMP threshold of 0, every change between samples is counted.
+ */
+public class FeatureExtractor {
+
+    public static final int MAV = 0;
+    public static final int WL = 1;
+    public static final int ZC = 2;
+    public static final int SSC = 3;
+    public static final int WAMP = 4;
+    public static final int HIST = 5;
+
+    public static final int DEFAULT_HISTOGRAM_BINS = 9;
+    public static final float DEFAULT_HISTOGRAM_RANGE = 1;
+
+    private final int bins;
+    private final float range;
+    private final float[] features;
+
+    private float zeroCrossingThreshold = 0;
+    private float slopeSignThreshold = 0;
+    private float willisonThreshold = 0;
+
+    /**
+     * Creates a feature extractor with the default histogram of
+     * DEFAULT_HISTOGRAM_BINS bins over [-1, 1].
+     */
+    public FeatureExtractor() {
+        this(DEFAULT_HISTOGRAM_BINS, DEFAULT_HISTOGRAM_RANGE);
+    }
+
+    /**
+     * Creates a feature extractor.
+     * @param bins : number of histogram bins (may be 0)
+     * @param range : the histogram covers [-range, range] evenly, values
+     * outside are counted in the outermost bins
+     */
+    public FeatureExtractor(int bins, float range) {
+        if (bins < 0 || range <= 0) {
+            throw new IllegalArgumentException(
+                    "Need a non-negative bin count and a positive range");
+        }
+        this.bins = bins;
+        this.range = range;
+
+        features = new float[HIST + bins];
+    }
+
+    /**
+     * Computes the features of the input data array.
+     * @param data : input data
+     * @return The feature vector, reused by the next call.
+     */
+    public float[] extract(float[] data) {
+        return extract(data, 0, data.length);
+    }
+
+    /**
+     * Computes the features of one channel of a block.
+     * @param block : input block
+     * @param channel : channel index
+     * @return The feature vector, reused by the next call.
+     */
+    public float[] extract(SampleBlock block, int channel) {
+        return extract(block.getData(), block.getOffset(channel),
+                block.getLength());
+    }
+
+    /**
+     * Computes the features of a slice of the input data array.
+     * @param data : input data
+     * @param offset : index of the first value
+     * @param length : number of values
+     * @return The feature vector, reused by the next call.
+     */
+    public float[] extract(float[] data, int offset, int length) {
+        final float zcThreshold = zeroCrossingThreshold;
+        final float sscThreshold = slopeSignThreshold;
+        final float wampThreshold = willisonThreshold;
+        final float binScale = bins / (2 * range);
+        final int lastBin = bins - 1;
+
+        Arrays.fill(features, 0);
+        if (length == 0) {
+            return features;
+        }
+
+        double mav = 0, wl = 0;
+        int zc = 0, ssc = 0, wamp = 0;
+
+        // x0 is the current sample, x1 and x2 the two before it
+        float x1 = 0, x2 = 0;
+        for (int i = 0; i < length; i++) {
+            float x0 = data[offset + i];
+            mav += Math.abs(x0);
+
+            if (i > 0) {
+                float diff = Math.abs(x0 - x1);
+                wl += diff;
+                if (diff > wampThreshold) {
+                    wamp++;
+                }
+                if (x0 * x1 < 0 && diff >= zcThreshold) {
+                    zc++;
+                }
+                if (i > 1 && (x1 - x2) * (x1 - x0) >= sscThreshold
+                        && x1 != x2 && x1 != x0) {
+                    ssc++;
+                }
+            }
+
+            if (bins > 0) {
+                int bin = (int)((x0 + range) * binScale);
+                features[HIST + (bin < 0 ? 0 : bin > lastBin ? lastBin : bin)]++;
+            }
+
+            x2 = x1;
+            x1 = x0;
+        }
+
+        features[MAV] = (float)(mav / length);
+        features[WL] = (float)wl;
+        features[ZC] = zc;
+        features[SSC] = ssc;
+        features[WAMP] = wamp;
+        return features;
+    }
+
+    /**
+     * Sets the minimum amplitude change for a sign change to count as a zero
+     * crossing.
+     * @param threshold : threshold in input units
+     */
+    public void setZeroCrossingThreshold(float threshold) {
+        zeroCrossingThreshold = threshold;
+    }
+
+    /**
+     * Sets the minimum product of the slopes around a sample for it to count
+     * as a slope sign change.
+     * @param threshold : threshold in squared input units
+     */
+    public void setSlopeSignThreshold(float threshold) {
+        slopeSignThreshold = threshold;
+    }
+
+    /**
+     * Sets the change between consecutive samples that the Willison
+     * amplitude counts changes above. At 0 it counts any change, so only
+     * repeated sample values are left out.
+     * @param threshold : threshold in input units
+     */
+    public void setWillisonThreshold(float threshold) {
+        willisonThreshold = threshold;
+    }
+
+    public int getFeatureCount() {
+        return features.length;
+    }
+
+    public int getHistogramBins() {
+        return bins;
+    }
+}
@@ -0,0 +1,155 @@
+package rascal.libemg.proc;
+
+import java.util.Arrays;
+
+/**
+ * Runs a bank of K IIR band filters over the same input and outputs the
+ * signal power (sum of squares) left in each band, generalizing BandFilter to
+ * any number of bands. Each band is a cascade of second-order sections in
+ * transposed direct form II. Coefficients and state are stored as structures
+ * of arrays indexed by section then band, so the per-sample inner loop runs
+ * over contiguous band values and can be vectorized by the JIT.
+ */
+public class FilterBank {
+
+    private final int bands;
+    private final int sections;
+
+    // coefficient and state arrays, index section*bands + band
+    private final double[] b0, b1, b2, a1, a2;
+    private final double[] z1, z2;
+
+    /** per-band values passed from one section to the next */
+    private final double[] y;
+    private final double[] power;
+    private final float[] output;
+
+    /**
+     * Creates a filter bank from second-order sections. Bands with fewer
+     * sections than the longest are padded with pass-through sections.
+     * @param sos : per band, one {b0, b1, b2, a1, a2} row per section (a0 = 1)
+     */
+    public FilterBank(double[][][] sos) {
+        bands = sos.length;
+
+        int n = 0;
+        for (double[][] band : sos) {
+            n = Math.max(n, band.length);
+        }
+        sections = n;
+
+        b0 = new double[sections * bands];
+        b1 = new double[sections * bands];
+        b2 = new double[sections * bands];
+        a1 = new double[sections * bands];
+        a2 = new double[sections * bands];
+        z1 = new double[sections * bands];
+        z2 = new double[sections * bands];
+
+        Arrays.fill(b0, 1);
+        for (int k = 0; k < bands; k++) {
+            for (int s = 0; s < sos[k].length; s++) {
+                int i = s*bands + k;
+                b0[i] = sos[k][s][0];
+                b1[i] = sos[k][s][1];
+                b2[i] = sos[k][s][2];
+                a1[i] = sos[k][s][3];
+                a2[i] = sos[k][s][4];
+            }
+        }
+
+        y = new double[bands];
+        power = new double[bands];
+        output = new float[bands];
+    }
+
+    /**
+     * Creates a filter bank from transfer functions, one per band.
+     * @param b : numerator coefficients of each band
+     * @param a : denominator coefficients of each band
+     */
+    public FilterBank(double[][] b, double[][] a) {
+        this(toSections(b, a));
+    }
+
+    private static double[][][] toSections(double[][] b, double[][] a) {
+        if (b.length != a.length) {
+            throw new IllegalArgumentException(
+                    "Need the same number of numerators and denominators");
+        }
+        double[][][] sos = new double[b.length][][];
+        for (int k = 0; k < b.length; k++) {
+            sos[k] = SecondOrderSections.fromTransferFunction(b[k], a[k]);
+        }
+        return sos;
+    }
+
+    /**
+     * Filters the input data array with every band filter.
+     * @param data : input data to filter
+     * @return power remaining after filtering in each band. The array is
+     * reused by the next call.
+     */
+    public float[] filter(float[] data) {
+        return filter(data, 0, data.length);
+    }
+
+    /**
+     * Filters part of an input array with every band filter.
+     * @param data : input data to filter
+     * @param off : index of the first sample
+     * @param len : number of samples
+     * @return power remaining after filtering in each band. The array is
+     * reused by the next call.
+     */
+    public float[] filter(float[] data, int off, int len) {
+        final int bands = this.bands;
+        final int sections = this.sections;
+        final double[] b0 = this.b0, b1 = this.b1, b2 = this.b2;
+        final double[] a1 = this.a1, a2 = this.a2;
+        final double[] z1 = this.z1, z2 = this.z2;
+        final double[] y = this.y, power = this.power;
+
+        Arrays.fill(power, 0);
+
+        for (int n = off; n < off + len; n++) {
+            Arrays.fill(y, data[n]);
+
+            for (int s = 0, base = 0; s < sections; s++, base += bands) {
+                for (int k = 0; k < bands; k++) {
+                    int i = base + k;
+                    double x = y[k];
+                    double out = b0[i]*x + z1[i];
+                    z1[i] = b1[i]*x - a1[i]*out + z2[i];
+                    z2[i] = b2[i]*x - a2[i]*out;
+                    y[k] = out;
+                }
+            }
+
+            for (int k = 0; k < bands; k++) {
+                power[k] += y[k]*y[k];
+            }
+        }
+
+        for (int k = 0; k < bands; k++) {
+            output[k] = (float)power[k];
+        }
+        return output;
+    }
+
+    /**
+     * Clears the filter state of every band.
+     */
+    public void reset() {
+        Arrays.fill(z1, 0);
+        Arrays.fill(z2, 0);
+    }
+
+    public int getBandCount() {
+        return bands;
+    }
+
+    public int getSectionCount() {
+        return sections;
+    }
+}
@@ -0,0 +1,127 @@
+package rascal.libemg.proc;
+
+import java.util.Arrays;
+
+/**
+ * A streaming FIR filter which runs K parallel streams (e.g. the axes of a
+ * Position) through one set of coefficients. Each stream keeps its own
+ * history in a doubled circular buffer: every input is written twice, n taps
+ * apart, so the last n inputs are always contiguous and the output is a
+ * plain dot product without any shifting or wrap-around checks.
+ */
+public class FirFilter {
+    
+    private final int taps;
+    private final int streams;
+    /** coefficients reversed to line up with the oldest-first history */
+    private final double[] coeffs;
+    /** history of stream s at [2*taps*s, 2*taps*(s+1)) */
+    private final float[] history;
+    /** per stream, index of the oldest input in its window */
+    private final int[] oldest;
+    
+    /**
+     * Creates a single stream filter.
+     * @param b : filter coefficients, b[0] applied to the newest input
+     */
+    public FirFilter(double[] b) {
+        this(b, 1);
+    }
+    
+    /**
+     * Creates a filter for several parallel streams.
+     * @param b : filter coefficients, b[0] applied to the newest input
+     * @param streams : number of independent streams
+     */
+    public FirFilter(double[] b, int streams) {
+        if (b.length < 1 || streams < 1) {
+            throw new IllegalArgumentException(
+                    "Need at least one coefficient and one stream");
+        }
+        taps = b.length;
+        this.streams = streams;
+        
+        coeffs = new double[taps];
+        for (int i = 0; i < taps; i++) {
+            coeffs[i] = b[taps-1-i];
+        }
+        
+        history = new float[2 * taps * streams];
+        oldest = new int[streams];
+    }
+    
+    /**
+     * Filters one input of a single stream.
+     * @param stream : stream index
+     * @param x : new input value
+     * @return filtered output
+     */
+    public float filter(int stream, float x) {
+        int base = 2 * taps * stream;
+        int pos = oldest[stream];
+        
+        // overwrite the oldest input in both halves
+        history[base + pos] = x;
+        history[base + pos + taps] = x;
+        pos = pos == taps-1 ? 0 : pos+1;
+        oldest[stream] = pos;
+        
+        double y = 0;
+        int start = base + pos;
+        for (int i = 0; i < taps; i++) {
+            y += coeffs[i] * history[start + i];
+        }
+        return (float)y;
+    }
+    
+    /**
+     * Filters one input of every stream.
+     * @param in : new input per stream
+     * @param out : destination for the output per stream (may be in)
+     */
+    public void filter(float[] in, float[] out) {
+        for (int s = 0; s < streams; s++) {
+            out[s] = filter(s, in[s]);
+        }
+    }
+    
+    /**
+     * Filters a block of inputs of a single stream.
+     * @param stream : stream index
+     * @param in : input samples
+     * @param off : index of the first input sample
+     * @param len : number of samples
+     * @param out : destination for the filtered samples (may be in)
+     * @param outOff : index in out to start writing at
+     */
+    public void filter(int stream, float[] in, int off, int len,
+            float[] out, int outOff) {
+        for (int i = 0; i < len; i++) {
+            out[outOff + i] = filter(stream, in[off + i]);
+        }
+    }
+    
+    /**
+     * Filters a block of inputs of a single stream filter in place.
+     * @param data : samples to filter
+     */
+    public void filter(float[] data) {
+        filter(0, data, 0, data.length, data, 0);
+    }
+    
+    /**
+     * Clears the history of every stream.
+     */
+    public void reset() {
+        Arrays.fill(history, 0);
+        Arrays.fill(oldest, 0);
+    }
+    
+    public int getTapCount() {
+        return taps;
+    }
+    
+    public int getStreamCount() {
+        return streams;
+    }
+}
@@ -0,0 +1,163 @@
+package rascal.libemg.proc;
+
+/**
+ * Removes mains hum (50 or 60 Hz and its harmonics) with a cascade of
+ * second-order notch filters whose center frequency adapts to the actual
+ * mains frequency. Each notch has the constrained form
+ * <p>
+ * {@code H(z) = (1 + a z^-1 + z^-2) / (1 + r a z^-1 + r^2 z^-2)}
+ * <p>
+ * with zeros on the unit circle at the notch frequency w (a = -2 cos w) and
+ * poles just inside at radius r, which sets the notch width. The fundamental
+ * notch adapts its coefficient by normalized gradient descent on its output
+ * power, within +/- MAX_DEVIATION Hz of the nominal frequency. Harmonic h
+ * then uses cos(h w), derived from cos(w) with the Chebyshev recursion
+ * cos(h w) = 2 cos(w) cos((h-1) w) - cos((h-2) w), so the whole stage costs
+ * a fixed amount per sample with no trigonometric calls.
+ */
+public class MainsNotchFilter {
+
+    public static final float DEFAULT_POLE_RADIUS = 0.995f;
+    public static final float DEFAULT_STEP_SIZE = 0.002f;
+    /** Furthest the tracked frequency may move from nominal, in Hz */
+    public static final float MAX_DEVIATION = 5;
+
+    private final int notches;
+    private final float sampleRate;
+    private final double r, r2;
+    private final double mu;
+    private final double minCos, maxCos;
+
+    /** cosine of the tracked fundamental */
+    private double cos;
+    /** -2 cos(h w) per notch, fundamental first */
+    private final double[] a;
+    /** direct form II state of each notch */
+    private final double[] w1, w2;
+    /** running power of the fundamental's gradient signal */
+    private double power;
+
+    /**
+     * Creates a notch stage with the default notch width and adaptation
+     * rate.
+     * @param mainsHz : nominal mains frequency, e.g. 50 or 60
+     * @param harmonics : number of harmonics to remove besides the
+     * fundamental
+     * @param sampleRate : sample rate in Hz
+     */
+    public MainsNotchFilter(float mainsHz, int harmonics, float sampleRate) {
+        this(mainsHz, harmonics, sampleRate, DEFAULT_POLE_RADIUS,
+                DEFAULT_STEP_SIZE);
+    }
+
+    /**
+     * Creates a notch stage.
+     * @param mainsHz : nominal mains frequency, e.g. 50 or 60
+     * @param harmonics : number of harmonics to remove besides the
+     * fundamental
+     * @param sampleRate : sample rate in Hz
+     * @param poleRadius : pole radius in (0, 1); the -3 dB width of each
+     * notch is about (1 - poleRadius) * sampleRate / pi Hz
+     * @param stepSize : adaptation rate of the fundamental, 0 to disable
+     * tracking
+     */
+    public MainsNotchFilter(float mainsHz, int harmonics, float sampleRate,
+            float poleRadius, float stepSize) {
+        if (harmonics < 0 || (harmonics + 1) * (mainsHz + MAX_DEVIATION)
+                >= sampleRate / 2) {
+            throw new IllegalArgumentException(
+                    "Highest harmonic must be below the Nyquist frequency");
+        }
+        if (!(poleRadius > 0 && poleRadius < 1)) {
+            throw new IllegalArgumentException(
+                    "Pole radius must be between 0 and 1");
+        }
+        notches = harmonics + 1;
+        this.sampleRate = sampleRate;
+        r = poleRadius;
+        r2 = r * r;
+        mu = stepSize;
+
+        cos = Math.cos(2 * Math.PI * mainsHz / sampleRate);
+        minCos = Math.cos(2 * Math.PI * (mainsHz + MAX_DEVIATION) / sampleRate);
+        maxCos = Math.cos(2 * Math.PI * (mainsHz - MAX_DEVIATION) / sampleRate);
+
+        a = new double[notches];
+        w1 = new double[notches];
+        w2 = new double[notches];
+        updateHarmonics();
+    }
+
+    private void updateHarmonics() {
+        double prev = 1, curr = cos;
+        a[0] = -2 * curr;
+        for (int h = 1; h < notches; h++) {
+            double next = 2 * cos * curr - prev;
+            prev = curr;
+            curr = next;
+            a[h] = -2 * curr;
+        }
+    }
+
+    /**
+     * Filters a single sample.
+     * @param x : input sample
+     * @return the sample with mains hum removed
+     */
+    public float filter(float x) {
+        double y = x;
+
+        for (int h = 0; h < notches; h++) {
+            double w = y - r * a[h] * w1[h] - r2 * w2[h];
+            double e = w + a[h] * w1[h] + w2[h];
+
+            if (h == 0 && mu > 0) {
+                // de/da is approximately w1: step a to reduce e^2, normalized
+                // by the running power of w1
+                power = 0.99 * power + 0.01 * w1[0] * w1[0];
+                double c = cos + mu * e * w1[0] / (2 * (power + 1e-12));
+                cos = Math.max(minCos, Math.min(maxCos, c));
+            }
+
+            w2[h] = w1[h];
+            w1[h] = w;
+            y = e;
+        }
+
+        if (mu > 0) {
+            updateHarmonics();
+        }
+
+        return (float)y;
+    }
+
+    /**
+     * Filters a block of samples in place.
+     * @param data : samples to filter
+     * @param off : index of the first sample
+     * @param len : number of samples
+     */
+    public void filter(float[] data, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            data[i] = filter(data[i]);
+        }
+    }
+
+    /**
+     * @return The mains frequency currently tracked, in Hz.
+     */
+    public float getFrequency() {
+        return (float)(Math.acos(cos) * sampleRate / (2 * Math.PI));
+    }
+
+    /**
+     * Clears the filter state, keeping the tracked frequency.
+     */
+    public void reset() {
+        for (int h = 0; h < notches; h++) {
+            w1[h] = 0;
+            w2[h] = 0;
+        }
+        power = 0;
+    }
+}
@@ -1,44 +1,64 @@
 package rascal.libemg.proc;
 
+import java.util.Arrays;
+
 /**
  * Implements a simple moving average filter which is meant to be updated point
- * by point (sample by sample).
+ * by point (sample by sample). Past inputs are kept in a ring buffer and the
+ * window sum is updated with each new input instead of being recomputed, so
+ * updates take constant time. The running sum is Kahan compensated to keep
+ * rounding errors from accumulating over long sessions.
  */
-public class MovingAverageFilter {
+public class MovingAverageFilter implements PointFilter {
     
     private float[] inputs;
     private int m;
+    private int next;
+    private double sum, compensation;
     private float out;
     
     /**
      * Creates a moving average filter of length m. The length determines
-     * the number of past inputs to use in calculating the output.
+     * the number of past inputs to use in calculating the output. Until m
+     * inputs have been seen, the missing ones count as zero.
      * @param m : number of input samples to use in the filter
      */
     public MovingAverageFilter(int m) {
+        if (m < 1) {
+            throw new IllegalArgumentException("Length must be at least 1");
+        }
         this.m = m;
         
         inputs = new float[m];
     }
     
-    /**
-     * Updates the filter by adding a new input and returning the current
-     * output.
-     * @param x : new input value
-     * @return Current filtered output.
-     */
+    @Override
     public float update(float x) {
-        for (int i = 0; i < m-1; i++) {
-            inputs[i] = inputs[i+1];
-        }
-        inputs[m-1] = x;
+        // Kahan summation of (x - oldest)
+        double y = ((double)x - inputs[next]) - compensation;
+        double t = sum + y;
+        compensation = (t - sum) - y;
+        sum = t;
         
-        out = 0;
-        for (int i = 0; i < m; i++) {
-            out += inputs[i];
-        }
-        out /= m;
+        inputs[next] = x;
+        next = next == m-1 ? 0 : next+1;
         
+        out = (float)(sum / m);
+        
+        return out;
+    }
+    
+    @Override
+    public float getOutput() {
         return out;
     }
-}
\ No newline at end of file
+    
+    @Override
+    public void reset() {
+        Arrays.fill(inputs, 0);
+        next = 0;
+        sum = 0;
+        compensation = 0;
+        out = 0;
+    }
+}
@@ -0,0 +1,92 @@
+package rascal.libemg.proc;
+
+/**
+ * Computes the minimum or maximum of the last m inputs, updated point by
+ * point in amortized constant time. A monotonic deque holds the inputs which
+ * could still become the extremum: each new input removes the queued inputs
+ * it dominates, and the front is dropped once it leaves the window.
+ */
+public class MovingExtremumFilter implements PointFilter {
+    
+    public enum Mode {
+        MIN, MAX
+    }
+    
+    private final Mode mode;
+    private final int m;
+    // deque of (input, time) as a ring of m entries
+    private final float[] values;
+    private final long[] times;
+    private int head, size;
+    private long time;
+    private float out;
+    
+    /**
+     * Creates a moving minimum or maximum filter of length m.
+     * @param m : number of input samples to use in the filter
+     * @param mode : whether to output the minimum or maximum
+     */
+    public MovingExtremumFilter(int m, Mode mode) {
+        if (m < 1) {
+            throw new IllegalArgumentException("Length must be at least 1");
+        }
+        this.m = m;
+        this.mode = mode;
+        
+        values = new float[m];
+        times = new long[m];
+    }
+    
+    /**
+     * Updates the filter by adding a new input and returning the current
+     * output. Until m inputs have been seen, the extremum is taken over the
+     * inputs so far.
+     * @param x : new input value
+     * @return Current minimum or maximum of the window.
+     */
+    @Override
+    public float update(float x) {
+        boolean max = mode == Mode.MAX;
+        
+        // drop the front once it leaves the window
+        if (size > 0 && times[head] <= time - m) {
+            head = head == m-1 ? 0 : head+1;
+            size--;
+        }
+        
+        // drop queued inputs that can no longer be the extremum
+        while (size > 0) {
+            int tail = (head + size - 1) % m;
+            if (max ? values[tail] > x : values[tail] < x) {
+                break;
+            }
+            size--;
+        }
+        
+        int tail = (head + size) % m;
+        values[tail] = x;
+        times[tail] = time;
+        size++;
+        time++;
+        
+        out = values[head];
+        return out;
+    }
+    
+    @Override
+    public float getOutput() {
+        return out;
+    }
+    
+    public Mode getMode() {
+        return mode;
+    }
+    
+    @Override
+    public void reset() {
+        head = 0;
+        size = 0;
+        time = 0;
+        out = 0;
+    }
+}
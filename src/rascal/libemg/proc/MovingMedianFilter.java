@@ -0,0 +1,171 @@
+package rascal.libemg.proc;
+
+/**
+ * Computes the median of the last m inputs, updated point by point in
+ * O(log m) time. The window is split between a max-heap of the lower half
+ * and a min-heap of the upper half. The heaps hold ring buffer slots and
+ * every slot knows its heap position, so the input leaving the window is
+ * replaced in place by the new one and sifted into order.
+ */
+public class MovingMedianFilter implements PointFilter {
+    
+    private final int m;
+    private final float[] inputs;
+    // lower half (max-heap) and upper half (min-heap) of ring slots
+    private final int[] lo, hi;
+    // heap position of each slot: i in lo, or ~i in hi
+    private final int[] where;
+    private int loSize, hiSize;
+    private int next, count;
+    private float out;
+    
+    /**
+     * Creates a moving median filter of length m.
+     * @param m : number of input samples to use in the filter
+     */
+    public MovingMedianFilter(int m) {
+        if (m < 1) {
+            throw new IllegalArgumentException("Length must be at least 1");
+        }
+        this.m = m;
+        
+        inputs = new float[m];
+        lo = new int[m];
+        hi = new int[m];
+        where = new int[m];
+    }
+    
+    /**
+     * Updates the filter by adding a new input and returning the current
+     * output. Until m inputs have been seen, the median is taken over the
+     * inputs so far.
+     * @param x : new input value
+     * @return Current median of the window (the mean of the two middle inputs
+     * for an even count).
+     */
+    @Override
+    public float update(float x) {
+        int slot = next;
+        inputs[slot] = x;
+        next = next == m-1 ? 0 : next+1;
+        
+        if (count < m) {
+            count++;
+            if (loSize == 0 || x <= inputs[lo[0]]) {
+                lo[loSize] = slot;
+                where[slot] = loSize;
+                siftUp(lo, loSize++, true);
+            } else {
+                hi[hiSize] = slot;
+                where[slot] = ~hiSize;
+                siftUp(hi, hiSize++, false);
+            }
+            
+            // keep loSize == hiSize or hiSize + 1
+            if (loSize > hiSize + 1) {
+                int top = popTop(lo, true);
+                hi[hiSize] = top;
+                where[top] = ~hiSize;
+                siftUp(hi, hiSize++, false);
+            } else if (hiSize > loSize) {
+                int top = popTop(hi, false);
+                lo[loSize] = top;
+                where[top] = loSize;
+                siftUp(lo, loSize++, true);
+            }
+        } else {
+            // the slot's old input left the window; re-sift its heap
+            int w = where[slot];
+            if (w >= 0) {
+                siftDown(lo, siftUp(lo, w, true), loSize, true);
+            } else {
+                siftDown(hi, siftUp(hi, ~w, false), hiSize, false);
+            }
+            
+            // the changed input may now belong to the other half
+            if (hiSize > 0 && inputs[lo[0]] > inputs[hi[0]]) {
+                int a = lo[0];
+                int b = hi[0];
+                lo[0] = b;
+                where[b] = 0;
+                hi[0] = a;
+                where[a] = ~0;
+                siftDown(lo, 0, loSize, true);
+                siftDown(hi, 0, hiSize, false);
+            }
+        }
+        
+        if (loSize > hiSize) {
+            out = inputs[lo[0]];
+        } else {
+            out = (inputs[lo[0]] + inputs[hi[0]]) / 2;
+        }
+        return out;
+    }
+    
+    private boolean before(int a, int b, boolean max) {
+        return max ? inputs[a] > inputs[b] : inputs[a] < inputs[b];
+    }
+    
+    private void set(int[] heap, int i, int slot, boolean max) {
+        heap[i] = slot;
+        where[slot] = max ? i : ~i;
+    }
+    
+    private int siftUp(int[] heap, int i, boolean max) {
+        int slot = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!before(slot, heap[parent], max)) {
+                break;
+            }
+            set(heap, i, heap[parent], max);
+            i = parent;
+        }
+        set(heap, i, slot, max);
+        return i;
+    }
+    
+    private void siftDown(int[] heap, int i, int size, boolean max) {
+        int slot = heap[i];
+        while (true) {
+            int child = 2*i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && before(heap[child + 1], heap[child], max)) {
+                child++;
+            }
+            if (!before(heap[child], slot, max)) {
+                break;
+            }
+            set(heap, i, heap[child], max);
+            i = child;
+        }
+        set(heap, i, slot, max);
+    }
+    
+    private int popTop(int[] heap, boolean max) {
+        int top = heap[0];
+        int size = max ? --loSize : --hiSize;
+        if (size > 0) {
+            set(heap, 0, heap[size], max);
+            siftDown(heap, 0, size, max);
+        }
+        return top;
+    }
+    
+    @Override
+    public float getOutput() {
+        return out;
+    }
+    
+    @Override
+    public void reset() {
+        loSize = 0;
+        hiSize = 0;
+        next = 0;
+        count = 0;
+        out = 0;
+    }
+}
@@ -0,0 +1,78 @@
+package rascal.libemg.proc;
+
+/**
+ * Computes the variance of the last m inputs, updated point by point in
+ * constant time. The window mean and sum of squared deviations are updated
+ * with Welford's method when an input enters and leaves the window, which
+ * avoids the cancellation of the naive sum of squares approach.
+ */
+public class MovingVarianceFilter implements PointFilter {
+    
+    private float[] inputs;
+    private int m;
+    private int next, count;
+    private double mean, m2;
+    private float out;
+    
+    /**
+     * Creates a moving variance filter of length m.
+     * @param m : number of input samples to use in the filter
+     */
+    public MovingVarianceFilter(int m) {
+        if (m < 1) {
+            throw new IllegalArgumentException("Length must be at least 1");
+        }
+        this.m = m;
+        
+        inputs = new float[m];
+    }
+    
+    /**
+     * Updates the filter by adding a new input and returning the current
+     * output. Until m inputs have been seen, the variance is taken over the
+     * inputs so far.
+     * @param x : new input value
+     * @return Current (population) variance of the window.
+     */
+    @Override
+    public float update(float x) {
+        if (count < m) {
+            count++;
+            double delta = x - mean;
+            mean += delta / count;
+            m2 += delta * (x - mean);
+        } else {
+            double old = inputs[next];
+            double newMean = mean + (x - old) / m;
+            m2 += (x - old) * (x - newMean + old - mean);
+            mean = newMean;
+        }
+        
+        inputs[next] = x;
+        next = next == m-1 ? 0 : next+1;
+        
+        out = (float)(Math.max(m2, 0) / count);
+        return out;
+    }
+    
+    @Override
+    public float getOutput() {
+        return out;
+    }
+    
+    /**
+     * @return Mean of the current window.
+     */
+    public float getMean() {
+        return (float)mean;
+    }
+    
+    @Override
+    public void reset() {
+        next = 0;
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        out = 0;
+    }
+}
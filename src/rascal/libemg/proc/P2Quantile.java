@@ -0,0 +1,137 @@
+package rascal.libemg.proc;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile of a stream of values in constant memory with the P^2
+ * algorithm (Jain and Chlamtac, 1985). Five markers track the minimum, the
+ * p/2, p and (1+p)/2 quantiles and the maximum; each new value shifts the
+ * marker positions and the marker heights are adjusted with piecewise
+ * parabolic interpolation. No values are stored, so a single outlier can
+ * only move the estimate by a bounded amount, unlike a running maximum.
+ */
+public class P2Quantile {
+
+    private final double p;
+    /** marker heights */
+    private final double[] q = new double[5];
+    /** actual marker positions (1-based) */
+    private final int[] n = new int[5];
+    /** desired marker positions and their increments */
+    private final double[] np = new double[5];
+    private final double[] dn;
+    private int count = 0;
+
+    /**
+     * Creates an estimator.
+     * @param p : quantile to estimate, in (0, 1), e.g. 0.5 for the median
+     */
+    public P2Quantile(double p) {
+        if (!(p > 0 && p < 1)) {
+            throw new IllegalArgumentException("Quantile must be in (0, 1)");
+        }
+        this.p = p;
+        dn = new double[] {0, p/2, p, (1 + p)/2, 1};
+        reset();
+    }
+
+    /**
+     * Adds a value to the stream.
+     * @param x : new value
+     */
+    public void add(double x) {
+        if (count < 5) {
+            q[count++] = x;
+            if (count == 5) {
+                Arrays.sort(q);
+            }
+            return;
+        }
+        count++;
+
+        // find the cell of x, extending the extremes if needed
+        int k;
+        if (x < q[0]) {
+            q[0] = x;
+            k = 0;
+        } else if (x >= q[4]) {
+            q[4] = Math.max(q[4], x);
+            k = 3;
+        } else {
+            k = 0;
+            while (x >= q[k + 1]) {
+                k++;
+            }
+        }
+
+        for (int i = k + 1; i < 5; i++) {
+            n[i]++;
+        }
+        for (int i = 0; i < 5; i++) {
+            np[i] += dn[i];
+        }
+
+        // move the middle markers towards their desired positions
+        for (int i = 1; i < 4; i++) {
+            double d = np[i] - n[i];
+            if ((d >= 1 && n[i + 1] - n[i] > 1)
+                    || (d <= -1 && n[i - 1] - n[i] < -1)) {
+                int s = d > 0 ? 1 : -1;
+                double h = parabolic(i, s);
+                if (!(q[i - 1] < h && h < q[i + 1])) {
+                    h = linear(i, s);
+                }
+                q[i] = h;
+                n[i] += s;
+            }
+        }
+    }
+
+    private double parabolic(int i, int s) {
+        return q[i] + (double)s / (n[i + 1] - n[i - 1])
+                * ((n[i] - n[i - 1] + s) * (q[i + 1] - q[i])
+                        / (n[i + 1] - n[i])
+                + (n[i + 1] - n[i] - s) * (q[i] - q[i - 1])
+                        / (n[i] - n[i - 1]));
+    }
+
+    private double linear(int i, int s) {
+        return q[i] + s * (q[i + s] - q[i]) / (n[i + s] - n[i]);
+    }
+
+    /**
+     * @return The current estimate of the quantile, exact while fewer than
+     * five values have been added, or 0 before any value.
+     */
+    public double getQuantile() {
+        if (count >= 5) {
+            return q[2];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        // few values: pick from the sorted values (nearest rank)
+        double[] sorted = Arrays.copyOf(q, count);
+        Arrays.sort(sorted);
+        int rank = (int)Math.ceil(p * count) - 1;
+        return sorted[Math.max(0, rank)];
+    }
+
+    /**
+     * @return The number of values added.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Discards all values added.
+     */
+    public void reset() {
+        count = 0;
+        for (int i = 0; i < 5; i++) {
+            n[i] = i + 1;
+            np[i] = 1 + 4 * dn[i];
+        }
+    }
+}
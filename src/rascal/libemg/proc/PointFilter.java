@@ -0,0 +1,27 @@
+package rascal.libemg.proc;
+
+/**
+ * A filter which is updated point by point (sample by sample) and outputs a
+ * statistic of its recent inputs. Implementations do not allocate after
+ * construction, so any of them can be used for smoothing in a control loop.
+ */
+public interface PointFilter {
+    
+    /**
+     * Updates the filter by adding a new input and returning the current
+     * output.
+     * @param x : new input value
+     * @return Current filtered output.
+     */
+    public float update(float x);
+    
+    /**
+     * @return Output as of the last update.
+     */
+    public float getOutput();
+    
+    /**
+     * Discards all previous inputs.
+     */
+    public void reset();
+}
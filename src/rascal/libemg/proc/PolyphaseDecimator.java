@@ -0,0 +1,187 @@
+package rascal.libemg.proc;
+
+import java.util.Arrays;
+
+/**
+ * Streaming anti-aliased decimator. The input is low-pass filtered with a
+ * Blackman-windowed sinc FIR filter before every M-th sample is kept, so
+ * content above the new Nyquist frequency no longer aliases into the output
+ * band. The filter is split into M polyphase branches that each run at the
+ * output rate, so only the retained outputs are ever computed. Filter state
+ * is carried across calls, so a stream can be fed block by block without
+ * discontinuities, and nothing is allocated after construction.
+ */
+public class PolyphaseDecimator {
+    
+    /** Default number of filter taps in each polyphase branch */
+    public static final int DEFAULT_TAPS_PER_PHASE = 16;
+    /** Cutoff frequency as a fraction of the output Nyquist frequency */
+    private static final double CUTOFF = 0.8;
+    
+    private final int factor;
+    private final int taps;
+    
+    /** Branch coefficients: branch p, tap k at coeffs[p*taps + k] */
+    private final float[] coeffs;
+    /**
+     * Branch delay lines: branch p at history[p*2*taps], each mirrored
+     * (every sample written twice, taps apart) so the newest taps samples
+     * are always contiguous.
+     */
+    private final float[] history;
+    private int pos = 0;
+    /** Branch the next input sample goes to */
+    private int phase;
+    
+    /**
+     * Creates a decimator with the default filter length.
+     * @param factor : decimation factor M, any integer >= 1
+     */
+    public PolyphaseDecimator(int factor) {
+        this(factor, DEFAULT_TAPS_PER_PHASE);
+    }
+    
+    /**
+     * Creates a decimator with factor*tapsPerPhase filter taps in total.
+     * @param factor : decimation factor M, any integer >= 1
+     * @param tapsPerPhase : taps in each of the M polyphase branches
+     */
+    public PolyphaseDecimator(int factor, int tapsPerPhase) {
+        if (factor < 1 || tapsPerPhase < 1) {
+            throw new IllegalArgumentException(
+                    "factor and tapsPerPhase must be positive");
+        }
+        
+        this.factor = factor;
+        this.taps = tapsPerPhase;
+        
+        // windowed-sinc prototype h[n], normalized to unit DC gain
+        int n = factor * tapsPerPhase;
+        double fc = CUTOFF * 0.5 / factor;
+        double[] h = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            double t = i - (n - 1) / 2.0;
+            double sinc = t == 0 ? 2*fc : Math.sin(2*Math.PI*fc*t) / (Math.PI*t);
+            double w = n == 1 ? 1 : 0.42 - 0.5*Math.cos(2*Math.PI*i/(n - 1))
+                    + 0.08*Math.cos(4*Math.PI*i/(n - 1));
+            h[i] = sinc * w;
+            sum += h[i];
+        }
+        
+        // branch p holds h[k*M + p], applied to x[(m-k)*M - p]
+        coeffs = new float[n];
+        for (int p = 0; p < factor; p++) {
+            for (int k = 0; k < taps; k++) {
+                coeffs[p*taps + k] = (float)(h[k*factor + p] / sum);
+            }
+        }
+        
+        history = new float[factor * 2 * taps];
+        reset();
+    }
+    
+    /**
+     * Clears the filter state.
+     */
+    public void reset() {
+        Arrays.fill(history, 0);
+        pos = 0;
+        phase = factor - 1;
+    }
+    
+    /**
+     * Gets the decimation factor.
+     * @return M
+     */
+    public int getFactor() {
+        return factor;
+    }
+    
+    /**
+     * Decimates 16-bit samples, scaling them for normalization.
+     * @param in : input samples
+     * @param off : index of the first input sample
+     * @param len : number of input samples
+     * @param scale : the output is divided by this (e.g. 32767 for [-1, 1])
+     * @param out : destination for the decimated samples
+     * @param outOff : index in out to start writing at
+     * @return the number of output samples written
+     */
+    public int process(short[] in, int off, int len, float scale, float[] out,
+            int outOff) {
+        int written = 0;
+        float gain = 1 / scale;
+        
+        for (int i = off; i < off + len; i++) {
+            if (push(in[i])) {
+                out[outOff + written++] = output() * gain;
+            }
+        }
+        
+        return written;
+    }
+    
+    /**
+     * Decimates float samples.
+     * @param in : input samples
+     * @param off : index of the first input sample
+     * @param len : number of input samples
+     * @param out : destination for the decimated samples
+     * @param outOff : index in out to start writing at
+     * @return the number of output samples written
+     */
+    public int process(float[] in, int off, int len, float[] out, int outOff) {
+        int written = 0;
+        
+        for (int i = off; i < off + len; i++) {
+            if (push(in[i])) {
+                out[outOff + written++] = output();
+            }
+        }
+        
+        return written;
+    }
+    
+    /**
+     * Hands one input sample to its polyphase branch.
+     * @return true if an output is due
+     */
+    private boolean push(float x) {
+        int base = phase*2*taps + pos;
+        history[base] = x;
+        history[base + taps] = x;
+        
+        if (phase > 0) {
+            phase--;
+            return false;
+        }
+        
+        phase = factor - 1;
+        return true;
+    }
+    
+    /**
+     * Computes the next output from all branches and advances the delay
+     * lines by one output sample.
+     */
+    private float output() {
+        float y = 0;
+        
+        // newest sample of each branch is at pos + taps, oldest at pos + 1
+        for (int p = 0; p < factor; p++) {
+            int c = p*taps;
+            int x = p*2*taps + pos + taps;
+            for (int k = 0; k < taps; k++) {
+                y += coeffs[c + k] * history[x - k];
+            }
+        }
+        
+        pos++;
+        if (pos == taps) {
+            pos = 0;
+        }
+        
+        return y;
+    }
+}
@@ -20,20 +20,18 @@ public class PositionFilter {
     };
 
     public Position output;
-    private int i;
     
-    // arrays to store low-pass filter points
-    private static float inputsX[];
-    private static float inputsY[];
+    // one stream per axis, so filters never share state
+    private final FirFilter fir;
+    private final float[] inputs, outputs;
     
     /**
-     * Sets up the input and output arrays, output position, and takes the
-     * the current Participant for normalizing the output to MVC.
-     * @param part : the currently signed in Participant
+     * Sets up the filter state and output position.
      */
     public PositionFilter() {
-        inputsX = new float[b.length];
-        inputsY = new float[b.length];
+        fir = new FirFilter(b, 2);
+        inputs = new float[2];
+        outputs = new float[2];
         
         output = new Position();
     }
@@ -42,23 +40,12 @@ public class PositionFilter {
      * Runs the input through the filter and sets the output Position pos.
      */
     public Position filter(float x, float y) {
-        // shift input buffer over
-        for(i = 1; i < b.length; i++) {
-            inputsX[i-1] = inputsX[i];
-            inputsY[i-1] = inputsY[i];
-        }
+        inputs[0] = x;
+        inputs[1] = y;
+        fir.filter(inputs, outputs);
         
-        inputsX[b.length-1] = x;
-        inputsY[b.length-1] = y;
-        
-        // calculate output based on filter coefficients and previous inputs
-        output.setQ1(0);
-        output.setQ2(0);
-        for(i = 0; i < b.length; i++) {
-            output.translate(
-                    (float)(b[i]*inputsX[b.length-1-i]),
-                    (float)(b[i]*inputsY[b.length-1-i]));
-        }
+        output.setQ1(outputs[0]);
+        output.setQ2(outputs[1]);
         
         return output;
     }
@@ -0,0 +1,224 @@
+package rascal.libemg.proc;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Converts IIR filters from transfer function form (b, a coefficient
+ * polynomials as given by MATLAB's butter()) to second-order sections. A
+ * cascade of second-order sections is much less sensitive to coefficient
+ * rounding than one high-order direct form filter, which matters for narrow
+ * bands at low sample rates. Each section is a row
+ * {b0, b1, b2, a1, a2} with a0 = 1.
+ */
+public class SecondOrderSections {
+    
+    /** Convergence tolerance of the polynomial root finder */
+    private static final double TOLERANCE = 1e-14;
+    private static final int MAX_ITERATIONS = 1000;
+    /** Roots with an imaginary part below this are treated as real */
+    private static final double REAL_TOLERANCE = 1e-7;
+    
+    /**
+     * Factors a transfer function into second-order sections. Poles are
+     * paired with their complex conjugates, sections are ordered from the
+     * pole pair furthest from the unit circle to the closest, and each pole
+     * pair gets the nearest remaining pair of zeros. The overall gain is
+     * applied in the first section.
+     * @param b : numerator coefficients
+     * @param a : denominator coefficients
+     * @return the sections, one {b0, b1, b2, a1, a2} row each
+     */
+    public static double[][] fromTransferFunction(double[] b, double[] a) {
+        int order = Math.max(b.length, a.length) - 1;
+        double[] num = pad(b, order + 1);
+        double[] den = pad(a, order + 1);
+        
+        // b[0] must be nonzero; a shorter b just means zeros at the origin
+        double gain = num[0] / den[0];
+        double[][] zeros = pair(roots(num));
+        double[][] poles = pair(roots(den));
+        int n = poles.length;
+        
+        // order pole pairs by distance to the unit circle, furthest first
+        sortByRadius(poles);
+        
+        double[][] sos = new double[n][];
+        boolean[] used = new boolean[n];
+        for (int i = n - 1; i >= 0; i--) {
+            int best = -1;
+            double bestDist = Double.MAX_VALUE;
+            for (int j = 0; j < n; j++) {
+                if (used[j]) {
+                    continue;
+                }
+                double d = Math.hypot(zeros[j][0] - poles[i][0],
+                        zeros[j][1] - poles[i][1]);
+                if (d < bestDist) {
+                    best = j;
+                    bestDist = d;
+                }
+            }
+            used[best] = true;
+            
+            double[] z = zeros[best];
+            double[] p = poles[i];
+            sos[i] = new double[] {1, z[4], z[5], p[4], p[5]};
+        }
+        
+        for (int k = 0; k < 3; k++) {
+            sos[0][k] *= gain;
+        }
+        
+        return sos;
+    }
+    
+    private static double[] pad(double[] c, int length) {
+        double[] out = new double[length];
+        System.arraycopy(c, 0, out, 0, c.length);
+        return out;
+    }
+    
+    /**
+     * Finds all complex roots of c[0] z^n + c[1] z^(n-1) + ... + c[n] with
+     * the Durand-Kerner method.
+     * @return {re, im} per root
+     */
+    private static double[][] roots(double[] c) {
+        int n = c.length - 1;
+        double[] re = new double[n];
+        double[] im = new double[n];
+        
+        // start from distinct points spread around a circle
+        double sr = 1, si = 0;
+        for (int i = 0; i < n; i++) {
+            re[i] = sr;
+            im[i] = si;
+            double tr = sr*0.4 - si*0.9;
+            si = sr*0.9 + si*0.4;
+            sr = tr;
+        }
+        
+        for (int iter = 0; iter < MAX_ITERATIONS; iter++) {
+            double change = 0;
+            
+            for (int i = 0; i < n; i++) {
+                // p(z_i) / c[0] by Horner's method
+                double pr = 1, pi = 0;
+                for (int k = 1; k <= n; k++) {
+                    double tr = pr*re[i] - pi*im[i] + c[k] / c[0];
+                    pi = pr*im[i] + pi*re[i];
+                    pr = tr;
+                }
+                
+                // prod_{j != i} (z_i - z_j)
+                double qr = 1, qi = 0;
+                for (int j = 0; j < n; j++) {
+                    if (j != i) {
+                        double dr = re[i] - re[j];
+                        double di = im[i] - im[j];
+                        double tr = qr*dr - qi*di;
+                        qi = qr*di + qi*dr;
+                        qr = tr;
+                    }
+                }
+                
+                double mag = qr*qr + qi*qi;
+                if (mag == 0) {
+                    // coincident estimates; nudge one apart
+                    re[i] += TOLERANCE;
+                    continue;
+                }
+                double dr = (pr*qr + pi*qi) / mag;
+                double di = (pi*qr - pr*qi) / mag;
+                re[i] -= dr;
+                im[i] -= di;
+                change = Math.max(change, Math.hypot(dr, di));
+            }
+            
+            if (change < TOLERANCE) {
+                break;
+            }
+        }
+        
+        double[][] out = new double[n][];
+        for (int i = 0; i < n; i++) {
+            out[i] = new double[] {re[i],
+                    Math.abs(im[i]) < REAL_TOLERANCE ? 0 : im[i]};
+        }
+        return out;
+    }
+    
+    /**
+     * Groups roots into conjugate or real pairs (a lone real root gets a
+     * partner at the origin, giving a first order section).
+     * @return {re, im, re2, im2, c1, c2} per pair, where 1 + c1 z^-1 + c2 z^-2
+     * is the pair's polynomial
+     */
+    private static double[][] pair(double[][] roots) {
+        int n = roots.length;
+        boolean[] used = new boolean[n];
+        double[][] reals = new double[n][];
+        int numReals = 0;
+        double[][] pairs = new double[(n + 1) / 2][];
+        int numPairs = 0;
+        
+        for (int i = 0; i < n; i++) {
+            if (used[i]) {
+                continue;
+            }
+            used[i] = true;
+            if (roots[i][1] == 0) {
+                reals[numReals++] = roots[i];
+                continue;
+            }
+            
+            // find the closest match to the conjugate
+            int best = -1;
+            double bestDist = Double.MAX_VALUE;
+            for (int j = i + 1; j < n; j++) {
+                double d = Math.hypot(roots[j][0] - roots[i][0],
+                        roots[j][1] + roots[i][1]);
+                if (!used[j] && d < bestDist) {
+                    best = j;
+                    bestDist = d;
+                }
+            }
+            used[best] = true;
+            double r = roots[i][0], m = roots[i][1];
+            pairs[numPairs++] = new double[] {r, Math.abs(m), r, -Math.abs(m),
+                    -2*r, r*r + m*m};
+        }
+        
+        // pair real roots largest with smallest, so e.g. the +1/-1 zeros of a
+        // band pass end up together in every section
+        Arrays.sort(reals, 0, numReals,
+                new Comparator<double[]>() {
+            @Override
+            public int compare(double[] x, double[] y) {
+                return Double.compare(x[0], y[0]);
+            }
+        });
+        for (int i = 0, j = numReals - 1; i <= j; i++, j--) {
+            double r1 = reals[i][0];
+            double r2 = i == j ? 0 : reals[j][0];
+            pairs[numPairs++] = new double[] {r1, 0, r2, 0, -(r1 + r2), r1*r2};
+        }
+        
+        return pairs;
+    }
+    
+    private static double radius(double[] pair) {
+        return Math.max(Math.hypot(pair[0], pair[1]),
+                Math.hypot(pair[2], pair[3]));
+    }
+    
+    private static void sortByRadius(double[][] pairs) {
+        Arrays.sort(pairs, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] x, double[] y) {
+                return Double.compare(radius(x), radius(y));
+            }
+        });
+    }
+}
@@ -0,0 +1,191 @@
+package rascal.libemg.proc;
+
+/**
+ * Slides an analysis window of fixed length over a stream of samples,
+ * producing a new window every hop samples. Samples are kept in a mirrored
+ * circular buffer: each one is written twice, a window length apart, so the
+ * latest window is always available as a contiguous slice of the buffer and
+ * old samples never have to be copied again as the window advances.
+ * Multiple channels are windowed in lock step, each with its own region of
+ * the buffer getChannelStride() samples apart.
+ * <p>
+ * Typical use, for each incoming block:
+ * <pre>
+ * int i = 0;
+ * while (i &lt; len) {
+ *     i += window.push(data, off + i, len - i);
+ *     if (window.isReady()) {
+ *         process(window.getBuffer(), window.getOffset(), window.getLength());
+ *     }
+ * }
+ * </pre>
+ */
+public class SlidingWindow {
+    
+    private final int windowLength;
+    private final int hopLength;
+    private final int channels;
+    private final float[] buffer;
+    
+    /** Index the next sample is written to, oldest sample in the window */
+    private int pos = 0;
+    private int filled = 0;
+    private int sinceHop = 0;
+    private boolean ready = false;
+    
+    /**
+     * Creates a sliding window.
+     * @param windowLength : number of samples in each window
+     * @param hopLength : number of new samples between consecutive windows
+     */
+    public SlidingWindow(int windowLength, int hopLength) {
+        this(windowLength, hopLength, 1);
+    }
+    
+    /**
+     * Creates a sliding window over several channels.
+     * @param windowLength : number of samples per channel in each window
+     * @param hopLength : number of new samples between consecutive windows
+     * @param channels : number of channels
+     */
+    public SlidingWindow(int windowLength, int hopLength, int channels) {
+        if (windowLength < 1 || hopLength < 1 || channels < 1) {
+            throw new IllegalArgumentException(
+                    "window and hop lengths and channels must be positive");
+        }
+        
+        this.windowLength = windowLength;
+        this.hopLength = hopLength;
+        this.channels = channels;
+        buffer = new float[2 * windowLength * channels];
+    }
+    
+    /**
+     * Adds samples to the window, stopping early as soon as a new window is
+     * ready so the caller can process it before it slides on.
+     * @param data : input samples
+     * @param off : index of the first sample to add
+     * @param len : number of samples available
+     * @return the number of samples consumed
+     */
+    public int push(float[] data, int off, int len) {
+        return push(data, off, len, 0);
+    }
+    
+    /**
+     * Adds channel-major samples to the window, stopping early as soon as a
+     * new window is ready so the caller can process it before it slides on.
+     * @param data : input samples
+     * @param off : index of the first sample of channel 0 to add
+     * @param len : number of samples available per channel
+     * @param stride : distance in data between the first samples of two
+     * consecutive channels
+     * @return the number of samples consumed per channel
+     */
+    public int push(float[] data, int off, int len, int stride) {
+        int span = 2 * windowLength;
+        ready = false;
+        
+        for (int i = 0; i < len; i++) {
+            for (int c = 0; c < channels; c++) {
+                float x = data[off + c*stride + i];
+                buffer[c*span + pos] = x;
+                buffer[c*span + pos + windowLength] = x;
+            }
+            if (++pos == windowLength) {
+                pos = 0;
+            }
+            
+            if (filled < windowLength) {
+                filled++;
+            }
+            sinceHop++;
+            
+            if (filled == windowLength && sinceHop >= hopLength) {
+                sinceHop = 0;
+                ready = true;
+                return i + 1;
+            }
+        }
+        
+        return len;
+    }
+    
+    /**
+     * Indicates whether the last push() completed a new window.
+     * @return true if a window is ready to be processed
+     */
+    public boolean isReady() {
+        return ready;
+    }
+    
+    /**
+     * Gets the number of samples still needed to complete the next window,
+     * so a caller can read exactly up to it.
+     * @return the number of samples to the next window, at least 1
+     */
+    public int getSamplesUntilReady() {
+        return Math.max(windowLength - filled, hopLength - sinceHop);
+    }
+    
+    /**
+     * Gets the buffer holding the current window. The window itself is the
+     * getLength() samples starting at getOffset().
+     * @return the window buffer
+     */
+    public float[] getBuffer() {
+        return buffer;
+    }
+    
+    /**
+     * Gets the index of the oldest sample of the current window (channel 0)
+     * in the buffer.
+     * @return the window offset
+     */
+    public int getOffset() {
+        return pos;
+    }
+    
+    /**
+     * Gets the distance in the buffer between the windows of two consecutive
+     * channels.
+     * @return the channel stride
+     */
+    public int getChannelStride() {
+        return 2 * windowLength;
+    }
+    
+    /**
+     * Gets the number of channels windowed.
+     * @return the channel count
+     */
+    public int getChannelCount() {
+        return channels;
+    }
+    
+    /**
+     * Gets the number of samples per channel in a window.
+     * @return the window length
+     */
+    public int getLength() {
+        return windowLength;
+    }
+    
+    /**
+     * Gets the number of new samples between consecutive windows.
+     * @return the hop length
+     */
+    public int getHopLength() {
+        return hopLength;
+    }
+    
+    /**
+     * Discards all samples so the next window starts from scratch.
+     */
+    public void reset() {
+        pos = 0;
+        filled = 0;
+        sinceHop = 0;
+        ready = false;
+    }
+}
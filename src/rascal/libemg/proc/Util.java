@@ -38,14 +38,121 @@ public class Util {
      * @return The RMS value.
      */
     public static float rms(float[] data) {
-        float out = 0;
+        return rms(data, 0, data.length);
+    }
+    
+    /**
+     * Calculates the root-mean-square value of a slice of the input array.
+     * @param data : data to calculate the RMS value for.
+     * @param offset : index of the first value
+     * @param length : number of values
+     * @return The RMS value.
+     */
+    public static float rms(float[] data, int offset, int length) {
+        return (float)Math.sqrt(sumSquares(data, offset, length) / length);
+    }
+    
+    /**
+     * Sums the squares of a slice of the input array in double precision.
+     * The loop keeps four independent partial sums so the additions can be
+     * pipelined (and vectorized by the JIT) instead of forming one long
+     * dependency chain.
+     */
+    private static double sumSquares(float[] data, int offset, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int end = offset + length;
+        int i = offset;
+        
+        for (; i + 3 < end; i += 4) {
+            double x0 = data[i], x1 = data[i+1];
+            double x2 = data[i+2], x3 = data[i+3];
+            s0 += x0*x0;
+            s1 += x1*x1;
+            s2 += x2*x2;
+            s3 += x3*x3;
+        }
+        for (; i < end; i++) {
+            double x = data[i];
+            s0 += x*x;
+        }
+        
+        return (s0 + s1) + (s2 + s3);
+    }
+    
+    /**
+     * Computes the envelope of a slice of the input array over consecutive
+     * sub-windows in a single pass: the RMS, mean absolute value and peak
+     * absolute value of each sub-window. Sums are accumulated in double
+     * precision with four independent lanes per sub-window. If the slice
+     * length is not a multiple of the window, the last sub-window is shorter.
+     * @param data : input data
+     * @param offset : index of the first value
+     * @param length : number of values
+     * @param window : number of values per sub-window
+     * @param rms : destination for the RMS of each sub-window, or null
+     * @param mav : destination for the mean absolute value of each
+     * sub-window, or null
+     * @param peak : destination for the peak absolute value of each
+     * sub-window, or null
+     * @return The number of sub-windows written.
+     */
+    public static int envelope(float[] data, int offset, int length,
+            int window, float[] rms, float[] mav, float[] peak) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be at least 1");
+        }
+        int windows = (length + window - 1) / window;
+        if ((rms != null && rms.length < windows)
+                || (mav != null && mav.length < windows)
+                || (peak != null && peak.length < windows)) {
+            throw new IllegalArgumentException(
+                    "Output arrays need room for " + windows + " windows");
+        }
         
-        for (int i = 0; i < data.length; i++) {
-            out += data[i]*data[i];
+        int end = offset + length;
+        for (int w = 0, start = offset; w < windows; w++, start += window) {
+            int stop = Math.min(start + window, end);
+            double q0 = 0, q1 = 0, q2 = 0, q3 = 0;
+            double a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+            float p0 = 0, p1 = 0, p2 = 0, p3 = 0;
+            int i = start;
+            
+            for (; i + 3 < stop; i += 4) {
+                float x0 = Math.abs(data[i]), x1 = Math.abs(data[i+1]);
+                float x2 = Math.abs(data[i+2]), x3 = Math.abs(data[i+3]);
+                q0 += (double)x0*x0;
+                q1 += (double)x1*x1;
+                q2 += (double)x2*x2;
+                q3 += (double)x3*x3;
+                a0 += x0;
+                a1 += x1;
+                a2 += x2;
+                a3 += x3;
+                p0 = Math.max(p0, x0);
+                p1 = Math.max(p1, x1);
+                p2 = Math.max(p2, x2);
+                p3 = Math.max(p3, x3);
+            }
+            for (; i < stop; i++) {
+                float x = Math.abs(data[i]);
+                q0 += (double)x*x;
+                a0 += x;
+                p0 = Math.max(p0, x);
+            }
+            
+            int n = stop - start;
+            if (rms != null) {
+                rms[w] = (float)Math.sqrt(((q0 + q1) + (q2 + q3)) / n);
+            }
+            if (mav != null) {
+                mav[w] = (float)(((a0 + a1) + (a2 + a3)) / n);
+            }
+            if (peak != null) {
+                peak[w] = Math.max(Math.max(p0, p1), Math.max(p2, p3));
+            }
         }
-        out = (float)Math.sqrt(out/data.length);
         
-        return out;
+        return windows;
     }
 
     /**
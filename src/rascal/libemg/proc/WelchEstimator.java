@@ -0,0 +1,255 @@
+package rascal.libemg.proc;
+
+import java.util.Arrays;
+
+import rascal.libemg.Position;
+
+/**
+ * Estimates band power with Welch's method as an alternative to BandFilter:
+ * the input stream is cut into Hann windowed segments overlapping by 50%, and
+ * the power spectra of the segments are averaged. The cost per sample does
+ * not depend on the number or width of the bands, so this is cheaper than
+ * recursive filtering when many bands are needed.
+ * <p>
+ * The resolution is sampleRate / fftSize, and the Hann window spreads a tone
+ * over about four bins, so bins must be several times narrower than the
+ * bands to resolve them. BandFilter's bands are 20 Hz wide and 30 Hz apart:
+ * at 4 kHz that takes an fftSize of at least 1024 (3.9 Hz bins, 256 ms
+ * segments). At 128 or 256 (31 or 16 Hz bins) a bin is as wide as a band,
+ * and the band powers are a coarse approximation smeared across both bands.
+ * <p>
+ * The FFT is a radix-2 real FFT (a complex FFT of half the size plus a split
+ * step) with twiddle factors, bit reversal and window tables computed once.
+ * All work buffers are preallocated.
+ */
+public class WelchEstimator {
+
+    private final int n;
+    private final int half;
+    private final float sampleRate;
+
+    private final float[] window;
+    /** sum of squared window values, to normalize power */
+    private final double windowPower;
+    /** twiddles of the half size complex FFT, cos/sin(2 pi k / half) */
+    private final double[] cosHalf, sinHalf;
+    /** twiddles of the split step, cos/sin(2 pi k / n) */
+    private final double[] cosFull, sinFull;
+    private final int[] bitReverse;
+
+    private final double[] re, im;
+    private final float[] segment;
+    private int filled = 0;
+
+    private final double[] sum;
+    private int segments = 0;
+    private final float[] spectrum;
+
+    private Position output;
+
+    /**
+     * Creates an estimator.
+     * @param fftSize : segment length, a power of two of at least 4
+     * @param sampleRate : input sample rate in Hz
+     */
+    public WelchEstimator(int fftSize, float sampleRate) {
+        if (fftSize < 4 || (fftSize & (fftSize - 1)) != 0) {
+            throw new IllegalArgumentException(
+                    "FFT size must be a power of two of at least 4");
+        }
+        n = fftSize;
+        half = n / 2;
+        this.sampleRate = sampleRate;
+
+        // periodic Hann window
+        window = new float[n];
+        double power = 0;
+        for (int i = 0; i < n; i++) {
+            window[i] = (float)(0.5 - 0.5 * Math.cos(2 * Math.PI * i / n));
+            power += window[i] * window[i];
+        }
+        windowPower = power;
+
+        cosHalf = new double[half / 2];
+        sinHalf = new double[half / 2];
+        for (int k = 0; k < half / 2; k++) {
+            cosHalf[k] = Math.cos(2 * Math.PI * k / half);
+            sinHalf[k] = Math.sin(2 * Math.PI * k / half);
+        }
+        cosFull = new double[half + 1];
+        sinFull = new double[half + 1];
+        for (int k = 0; k <= half; k++) {
+            cosFull[k] = Math.cos(2 * Math.PI * k / n);
+            sinFull[k] = Math.sin(2 * Math.PI * k / n);
+        }
+
+        bitReverse = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++) {
+            bitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+
+        re = new double[half];
+        im = new double[half];
+        segment = new float[n];
+        sum = new double[half + 1];
+        spectrum = new float[half + 1];
+
+        output = new Position();
+    }
+
+    /**
+     * Adds the input data to the stream and outputs the power left in
+     * BandFilter's two pass bands, scaled to the energy of the input block
+     * (mean power times data.length) like BandFilter.filter(). The two only
+     * agree when the bins are narrow enough to resolve the bands, i.e. an
+     * fftSize of at least 1024 at 4 kHz (see the class description). The
+     * spectrum is averaged over the segments completed by this block; if
+     * none were, the previous spectrum is kept.
+     * @param data : input data
+     * @return Position representing the power in each band.
+     */
+    public Position filter(float[] data) {
+        push(data, 0, data.length);
+
+        output.setQ1(getBandPower(BandFilter.LOW_1, BandFilter.HIGH_1)
+                * data.length);
+        output.setQ2(getBandPower(BandFilter.LOW_2, BandFilter.HIGH_2)
+                * data.length);
+        return output;
+    }
+
+    /**
+     * Adds a slice of input data to the stream, updating the spectrum if at
+     * least one segment was completed.
+     * @param data : input data
+     * @param off : index of the first sample
+     * @param len : number of samples
+     */
+    public void push(float[] data, int off, int len) {
+        Arrays.fill(sum, 0);
+        segments = 0;
+
+        int end = off + len;
+        while (off < end) {
+            int count = Math.min(n - filled, end - off);
+            System.arraycopy(data, off, segment, filled, count);
+            filled += count;
+            off += count;
+
+            if (filled == n) {
+                accumulate();
+                // keep the second half for 50% overlap
+                System.arraycopy(segment, half, segment, 0, half);
+                filled = half;
+            }
+        }
+
+        if (segments > 0) {
+            double scale = 1.0 / (segments * n * windowPower);
+            for (int k = 0; k <= half; k++) {
+                // one sided: fold negative frequencies except DC and Nyquist
+                double c = k == 0 || k == half ? scale : 2 * scale;
+                spectrum[k] = (float)(sum[k] * c);
+            }
+        }
+    }
+
+    /**
+     * Adds the periodogram of the current segment to the sum.
+     */
+    private void accumulate() {
+        // pack even samples as real and odd samples as imaginary parts
+        for (int i = 0; i < half; i++) {
+            int j = bitReverse[i];
+            re[j] = segment[2*i] * window[2*i];
+            im[j] = segment[2*i + 1] * window[2*i + 1];
+        }
+
+        for (int size = 2; size <= half; size *= 2) {
+            int h = size / 2;
+            int step = half / size;
+            for (int i = 0; i < half; i += size) {
+                for (int j = 0, k = 0; j < h; j++, k += step) {
+                    double wr = cosHalf[k], wi = -sinHalf[k];
+                    int a = i + j, b = a + h;
+                    double tr = wr*re[b] - wi*im[b];
+                    double ti = wr*im[b] + wi*re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+
+        // split into the spectrum of the real input:
+        // X[k] = E[k] + e^(-2 pi i k / n) O[k], where
+        // E[k] = (Z[k] + conj(Z[-k])) / 2, O[k] = (Z[k] - conj(Z[-k])) / 2i
+        for (int k = 0; k <= half; k++) {
+            int a = k == half ? 0 : k;
+            int b = k == 0 ? 0 : half - k;
+            double er = (re[a] + re[b]) / 2;
+            double ei = (im[a] - im[b]) / 2;
+            double or = (im[a] + im[b]) / 2;
+            double oi = -(re[a] - re[b]) / 2;
+            double wr = cosFull[k], wi = -sinFull[k];
+            double xr = er + wr*or - wi*oi;
+            double xi = ei + wr*oi + wi*or;
+            sum[k] += xr*xr + xi*xi;
+        }
+
+        segments++;
+    }
+
+    /**
+     * Sums the power spectrum over a band. Bin k covers frequencies within
+     * half a bin width of its center, and bins only partly inside the band
+     * are weighted by the fraction inside, so narrow bands are not quantized
+     * to whole bins.
+     * @param low : lower band edge in Hz
+     * @param high : upper band edge in Hz
+     * @return Mean power of the input in the band.
+     */
+    public float getBandPower(double low, double high) {
+        double from = low * n / sampleRate;
+        double to = high * n / sampleRate;
+        int first = Math.max(0, (int)Math.floor(from + 0.5));
+        int last = Math.min(half, (int)Math.floor(to + 0.5));
+        double power = 0;
+        for (int k = first; k <= last; k++) {
+            double overlap = Math.min(k + 0.5, to) - Math.max(k - 0.5, from);
+            if (overlap > 0) {
+                power += spectrum[k] * overlap;
+            }
+        }
+        return (float)power;
+    }
+
+    /**
+     * Gets the one sided power spectrum from the last update. Bin k is
+     * centered on k * sampleRate / fftSize Hz, and the bins sum to the mean
+     * power of the input.
+     * @return The spectrum (fftSize / 2 + 1 bins), reused by later updates.
+     */
+    public float[] getPowerSpectrum() {
+        return spectrum;
+    }
+
+    /**
+     * Discards buffered input and the current spectrum.
+     */
+    public void reset() {
+        filled = 0;
+        segments = 0;
+        Arrays.fill(spectrum, 0);
+    }
+
+    public int getFftSize() {
+        return n;
+    }
+
+    public float getBinWidth() {
+        return sampleRate / n;
+    }
+}